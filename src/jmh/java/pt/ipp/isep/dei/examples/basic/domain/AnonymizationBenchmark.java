@@ -0,0 +1,131 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hiding and counting keywords with the {@link AnonymizationEngine}, over strings from 64 bytes to 64 MB, with one
+ * keyword or keyword sets, and with few or many occurrences of the keywords.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AnonymizationBenchmark {
+
+    private static final String[] WORDS = {
+            "the", "socket", "server", "client", "datagram", "stream", "packet", "window", "network", "message",
+            "of", "and", "a", "to", "in", "protocol", "buffer", "thread", "request", "reply"
+    };
+
+    /**
+     * Length of the string, in characters, which are bytes in the default encoding.
+     */
+    @Param({"64", "4096", "262144", "16777216", "67108864"})
+    public int size;
+
+    /**
+     * Number of keywords hidden at once; more than one are sent as a {@link KeywordSet}.
+     */
+    @Param({"1", "8", "64"})
+    public int keywords;
+
+    /**
+     * Fraction of the words of the string that are keywords.
+     */
+    @Param({"0.001", "0.05", "0.3"})
+    public double density;
+
+    private String strg;
+    private String keyWord;
+
+    @Setup
+    public void setUp() {
+        List<String> keywordList = keywords(keywords);
+        strg = text(size, keywordList, density, 42);
+        keyWord = keywords == 1 ? keywordList.get(0) : KeywordSet.encode(keywordList);
+    }
+
+    @Benchmark
+    public int process() {
+        return AnonymizationEngine.forCurrentThread().process(strg, keyWord);
+    }
+
+    /**
+     * Processes the string on the calling thread alone, where {@link #process()} splits a large string hidden with
+     * a single keyword into chunks processed in parallel.
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Danonymization.parallel.threshold=0"})
+    public int processSequentially() {
+        return AnonymizationEngine.forCurrentThread().process(strg, keyWord);
+    }
+
+    @Benchmark
+    public AnonymizationResult anonymize() {
+        return AnonymizationEngine.forCurrentThread().anonymize(strg, keyWord);
+    }
+
+    /**
+     * @param count The number of keywords.
+     * @return Keywords that are not words of the filler text.
+     */
+    static List<String> keywords(int count) {
+        List<String> keywords = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keywords.add("secret" + (char) ('a' + i % 26) + (i / 26 == 0 ? "" : Integer.toString(i / 26)));
+        }
+        return keywords;
+    }
+
+    /**
+     * Builds a string of words, some of which are keywords, in lower, upper or capitalized case.
+     *
+     * @param size     The length of the string.
+     * @param keywords The keywords.
+     * @param density  The fraction of the words that are keywords.
+     * @param seed     The seed of the random words, so every run gets the same string.
+     * @return The string.
+     */
+    static String text(int size, List<String> keywords, double density, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size + 32);
+        while (text.length() < size) {
+            if (random.nextDouble() < density) {
+                String keyword = keywords.get(random.nextInt(keywords.size()));
+                switch (random.nextInt(3)) {
+                    case 0:
+                        text.append(keyword.toUpperCase(Locale.ROOT));
+                        break;
+                    case 1:
+                        text.append(Character.toUpperCase(keyword.charAt(0))).append(keyword, 1, keyword.length());
+                        break;
+                    default:
+                        text.append(keyword);
+                }
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            text.append(random.nextInt(10) == 0 ? ", " : " ");
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+}
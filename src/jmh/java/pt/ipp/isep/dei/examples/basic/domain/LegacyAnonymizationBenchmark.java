@@ -0,0 +1,56 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The regular expressions the servers used before the {@link AnonymizationEngine}, which it still falls back to:
+ * {@link AnonymizationEngine#replaceWord(String, String)}, which builds the hidden keyword with
+ * anonymizationData, and {@link AnonymizationEngine#getInstanceCounter(String, CharSequence)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LegacyAnonymizationBenchmark {
+
+    @Param({"64", "4096", "262144", "16777216", "67108864"})
+    public int size;
+
+    @Param({"0.001", "0.05", "0.3"})
+    public double density;
+
+    private String strg;
+    private String keyWord;
+
+    @Setup
+    public void setUp() {
+        List<String> keywords = AnonymizationBenchmark.keywords(1);
+        strg = AnonymizationBenchmark.text(size, keywords, density, 42);
+        keyWord = keywords.get(0);
+    }
+
+    @Benchmark
+    public String replaceWord() {
+        return AnonymizationEngine.replaceWord(strg, keyWord);
+    }
+
+    @Benchmark
+    public int getInstanceCounter() {
+        return AnonymizationEngine.getInstanceCounter(keyWord, strg);
+    }
+}
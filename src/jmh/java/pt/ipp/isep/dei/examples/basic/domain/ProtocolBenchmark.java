@@ -0,0 +1,88 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the messages of the UDP protocol, without the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"64", "4096", "65536"})
+    public int size;
+
+    private client_java_udp client;
+    private byte[] intBytes;
+    private String strg;
+    private byte[] request;
+    private ByteBuffer receivedRequest;
+    private byte[] reply;
+
+    @Setup
+    public void setUp() throws Exception {
+        client = client_java_udp.open(1000, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE,
+                UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE);
+        intBytes = ByteBuffer.allocate(4).putInt(size).array();
+        strg = AnonymizationBenchmark.text(size, AnonymizationBenchmark.keywords(1), 0.05, 42);
+        request = UdpProtocol.encodeRequest(strg, "secreta");
+        // as reassembled by the server, in a direct buffer of its pool
+        receivedRequest = ByteBuffer.allocateDirect(request.length).put(request).flip();
+        reply = UdpProtocol.encodeReply(AnonymizationEngine.forCurrentThread().anonymize(strg, "secreta"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public int byteArrayToInt() {
+        return client.byteArrayToInt(intBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() {
+        return UdpProtocol.encodeRequest(strg, "secreta");
+    }
+
+    @Benchmark
+    public AnonymizationRequest decodeRequest() {
+        return UdpProtocol.decodeRequest(ByteBuffer.wrap(request));
+    }
+
+    @Benchmark
+    public byte[] anonymizeDecoded() {
+        AnonymizationRequest decoded = UdpProtocol.decodeRequest(receivedRequest.duplicate());
+        return UdpProtocol.encodeReply(AnonymizationEngine.forCurrentThread()
+                .anonymize(decoded.getStrg(), decoded.getKeyWord()));
+    }
+
+    @Benchmark
+    public byte[] anonymizeBytes() {
+        return UdpProtocol.anonymizeRequest(receivedRequest, Utf8Anonymizer.forCurrentThread());
+    }
+
+    @Benchmark
+    public AnonymizationResult decodeReply() {
+        return UdpProtocol.decodeReply(ByteBuffer.wrap(reply));
+    }
+}
@@ -0,0 +1,112 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests sent over loopback to a TCP and a UDP server started by the benchmark, measured both as throughput and
+ * as sampled latency, whose report includes the percentiles. Each benchmark thread has its own connections, so
+ * {@code -t} sets the number of concurrent clients.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    /**
+     * The servers, shared by every benchmark thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        private server_java_tcp tcpServer;
+        private server_java_udp udpServer;
+        private int tcpPort;
+        private int udpPort;
+
+        @Setup
+        public void setUp() throws IOException {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                tcpPort = probe.getLocalPort();
+            }
+            try (DatagramSocket probe = new DatagramSocket(0)) {
+                udpPort = probe.getLocalPort();
+            }
+            tcpServer = new server_java_tcp(tcpPort);
+            udpServer = new server_java_udp(udpPort);
+            start(tcpServer::waitConnections, "benchmark-tcp-server");
+            start(udpServer::waitPackets, "benchmark-udp-server");
+        }
+
+        private static void start(Runnable server, String name) {
+            Thread thread = new Thread(server, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @TearDown
+        public void tearDown() {
+            tcpServer.shutdown();
+            udpServer.shutdown();
+        }
+    }
+
+    /**
+     * The connections and the request of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Clients {
+
+        @Param({"64", "4096", "65536"})
+        public int size;
+
+        private client_java_tcp tcpClient;
+        private client_java_udp udpClient;
+        private AnonymizationRequest request;
+
+        @Setup
+        public void setUp(Servers servers) throws IOException {
+            tcpClient = client_java_tcp.connect("localhost", servers.tcpPort, 10_000);
+            udpClient = client_java_udp.open(10_000, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE,
+                    UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE);
+            request = new AnonymizationRequest(
+                    AnonymizationBenchmark.text(size, AnonymizationBenchmark.keywords(1), 0.05, 42), "secreta");
+        }
+
+        @TearDown
+        public void tearDown() {
+            tcpClient.close();
+            udpClient.close();
+        }
+    }
+
+    @Benchmark
+    public AnonymizationResult tcp(Clients clients) throws IOException {
+        return clients.tcpClient.sendPipelined(Collections.singletonList(clients.request)).get(0);
+    }
+
+    @Benchmark
+    public AnonymizationResult udp(Servers servers, Clients clients) throws IOException {
+        return clients.udpClient.anonymize(InetAddress.getLoopbackAddress(), servers.udpPort,
+                clients.request.getStrg(), clients.request.getKeyWord());
+    }
+}
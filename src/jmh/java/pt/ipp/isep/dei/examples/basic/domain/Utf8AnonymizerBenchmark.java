@@ -0,0 +1,67 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hiding a keyword in the UTF-8 bytes of a string with the {@link Utf8Anonymizer}, the bytes that cannot start an
+ * instance being skipped one at a time, or many at once with the Vector API. Each operation copies the string, as
+ * the UDP server copies it into the reply, and a large string is not split into chunks processed in parallel. The
+ * vector benchmark needs JDK 17 or later.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Utf8AnonymizerBenchmark {
+
+    @Param({"4096", "262144", "16777216"})
+    public int size;
+
+    @Param({"0.001", "0.05"})
+    public double density;
+
+    private byte[] strg;
+    private byte[] masked;
+    private Utf8Anonymizer anonymizer;
+
+    @Setup
+    public void setUp() {
+        String keyWord = AnonymizationBenchmark.keywords(1).get(0);
+        strg = AnonymizationBenchmark.text(size, AnonymizationBenchmark.keywords(1), density, 42)
+                .getBytes(StandardCharsets.UTF_8);
+        masked = new byte[strg.length];
+        anonymizer = Utf8Anonymizer.forCurrentThread();
+        byte[] keyWordBytes = keyWord.getBytes(StandardCharsets.UTF_8);
+        anonymizer.setKeyword(ByteBuffer.wrap(keyWordBytes), 0, keyWordBytes.length);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Danonymization.vector=false", "-Danonymization.parallel.threshold=0"})
+    public int scalar() {
+        System.arraycopy(strg, 0, masked, 0, strg.length);
+        return anonymizer.process(masked, 0, masked.length);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector",
+            "-Danonymization.parallel.threshold=0"})
+    public int vector() {
+        System.arraycopy(strg, 0, masked, 0, strg.length);
+        return anonymizer.process(masked, 0, masked.length);
+    }
+}
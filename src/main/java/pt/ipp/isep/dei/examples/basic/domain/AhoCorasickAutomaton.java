@@ -0,0 +1,333 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An Aho-Corasick automaton finding every occurrence of a set of keywords in a single pass over a string,
+ * ignoring the case of ASCII letters. Characters are fed one at a time with {@link #next(int, char)}, and the
+ * keywords ending at the current character are those returned by {@link #outputs(int)}.
+ *
+ * Transitions on ASCII characters are precomputed for the start state and the states one character deep, so most
+ * characters of a string cost a single array lookup. Deeper states only keep the transitions of their keywords, in
+ * small sorted arrays, and other characters follow the failure links, so the automaton takes memory in proportion
+ * to the length of the keywords rather than a table of every ASCII character for each of their characters.
+ * Automata are immutable and cached by keyword set, so they can be shared by all threads.
+ */
+public class AhoCorasickAutomaton {
+
+    /**
+     * Default maximum number of automata kept by the shared cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    /**
+     * Length of the longest keyword field whose automaton is cached; longer ones are built for each request, so the
+     * cache holds at most a few megabytes whatever the clients send.
+     */
+    public static final int MAX_CACHED_FIELD_LENGTH = 4096;
+
+    private static final int ASCII = 128;
+    // states up to this depth have a table of every ASCII transition, deeper ones a sparse array of their own
+    private static final int DENSE_DEPTH = 1;
+    private static final char[] NO_LABELS = new char[0];
+    private static final int[] NO_OUTPUTS = new int[0];
+
+    // the size of the cache can be set with -Danonymization.automatonCache.size=<n>
+    private static final LruCache<String, AhoCorasickAutomaton> CACHE =
+            new LruCache<>(Integer.getInteger("anonymization.automatonCache.size", DEFAULT_CACHE_SIZE));
+
+    private final String[] keywords;
+    private final int[] keywordLengths;
+    private final int maxKeywordLength;
+    private final boolean hasSurrogates;
+    private final int[][] asciiNext;
+    private final char[][] sparseLabels;
+    private final int[][] sparseNext;
+    private final Map<Long, Integer> otherNext = new HashMap<>();
+    private final int[] fail;
+    private final int[][] outputs;
+
+    /**
+     * Builds the automaton of a set of keywords. Empty keywords never match.
+     *
+     * @param keywords The keywords to be found.
+     */
+    public AhoCorasickAutomaton(List<String> keywords) {
+        this.keywords = keywords.toArray(new String[0]);
+        this.keywordLengths = new int[this.keywords.length];
+
+        int maxStates = 1;
+        int longest = 0;
+        boolean surrogates = false;
+        for (int k = 0; k < this.keywords.length; k++) {
+            keywordLengths[k] = this.keywords[k].length();
+            maxStates += keywordLengths[k];
+            longest = Math.max(longest, keywordLengths[k]);
+            for (int j = 0; j < keywordLengths[k]; j++) {
+                surrogates |= Character.isSurrogate(this.keywords[k].charAt(j));
+            }
+        }
+        this.maxKeywordLength = longest;
+        this.hasSurrogates = surrogates;
+
+        int[][] next = new int[maxStates][];
+        char[][] labels = new char[maxStates][];
+        int[][] targets = new int[maxStates][];
+        int[][] own = new int[maxStates][];
+        next[0] = new int[ASCII];
+        int states = 1;
+
+        // trie of the lower-case keywords
+        for (int k = 0; k < this.keywords.length; k++) {
+            if (keywordLengths[k] == 0) {
+                continue;
+            }
+            int state = 0;
+            for (int j = 0; j < keywordLengths[k]; j++) {
+                char c = toLowerAscii(this.keywords[k].charAt(j));
+                int child = child(next, labels, targets, state, c);
+                if (child == 0) {
+                    child = states++;
+                    if (j + 1 <= DENSE_DEPTH) {
+                        next[child] = new int[ASCII];
+                    }
+                    if (c >= ASCII) {
+                        otherNext.put(key(state, c), child);
+                    } else if (next[state] != null) {
+                        next[state][c] = child;
+                    } else {
+                        addSparse(labels, targets, state, c, child);
+                    }
+                }
+                state = child;
+            }
+            own[state] = own[state] == null ? new int[]{k} : append(own[state], k);
+        }
+
+        this.asciiNext = Arrays.copyOf(next, states);
+        this.sparseLabels = Arrays.copyOf(labels, states);
+        this.sparseNext = Arrays.copyOf(targets, states);
+        this.fail = new int[states];
+        this.outputs = new int[states][];
+        outputs[0] = NO_OUTPUTS;
+
+        // breadth-first: failure links, ASCII transitions of every state and outputs merged along the failure links
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ASCII; c++) {
+            int child = asciiNext[0][c];
+            if (child != 0) {
+                fail[child] = 0;
+                queue.add(child);
+            }
+        }
+        for (Map.Entry<Long, Integer> entry : otherNext.entrySet()) {
+            if (entry.getKey() >>> 16 == 0) {
+                queue.add(entry.getValue());
+            }
+        }
+        Map<Integer, StringBuilder> otherChildren = otherChildrenByState();
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] inherited = outputs[fail[state]];
+            outputs[state] = own[state] == null ? inherited : concat(own[state], inherited);
+
+            if (asciiNext[state] != null) {
+                // the failure state is shallower, so it has a table as well
+                for (int c = 0; c < ASCII; c++) {
+                    int child = asciiNext[state][c];
+                    if (child != 0) {
+                        fail[child] = asciiNext[fail[state]][c];
+                        queue.add(child);
+                    } else {
+                        asciiNext[state][c] = asciiNext[fail[state]][c];
+                    }
+                }
+            } else if (sparseLabels[state] != null) {
+                for (int i = 0; i < sparseLabels[state].length; i++) {
+                    int child = sparseNext[state][i];
+                    fail[child] = next(fail[state], sparseLabels[state][i]);
+                    queue.add(child);
+                }
+            }
+            StringBuilder others = otherChildren.get(state);
+            if (others != null) {
+                for (int i = 0; i < others.length(); i++) {
+                    char c = others.charAt(i);
+                    int child = otherNext.get(key(state, c));
+                    fail[child] = next(fail[state], c);
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the automaton of the keyword field of a request, building it if it is not cached.
+     *
+     * @param keyWord A single keyword, or a keyword set built by {@link KeywordSet#encode(List)}.
+     * @return The automaton of the keywords.
+     */
+    public static AhoCorasickAutomaton forKeywordField(String keyWord) {
+        if (keyWord.length() > MAX_CACHED_FIELD_LENGTH) {
+            return build(keyWord);
+        }
+        return CACHE.get(keyWord, AhoCorasickAutomaton::build);
+    }
+
+    private static AhoCorasickAutomaton build(String field) {
+        return new AhoCorasickAutomaton(
+                KeywordSet.isKeywordSet(field) ? KeywordSet.decode(field) : Collections.singletonList(field));
+    }
+
+    /**
+     * @return The cache of automata shared by the servers, for its statistics.
+     */
+    public static LruCache<String, AhoCorasickAutomaton> cache() {
+        return CACHE;
+    }
+
+    /**
+     * Moves the automaton over a character.
+     *
+     * @param state The current state, 0 at the start of a string.
+     * @param c     The next character, compared with the keywords ignoring the case of ASCII letters.
+     * @return The state after the character.
+     */
+    public int next(int state, char c) {
+        c = toLowerAscii(c);
+        if (c < ASCII) {
+            // the start state has a table, which ends the walk along the failure links
+            while (asciiNext[state] == null) {
+                char[] labels = sparseLabels[state];
+                int i = labels == null ? -1 : Arrays.binarySearch(labels, c);
+                if (i >= 0) {
+                    return sparseNext[state][i];
+                }
+                state = fail[state];
+            }
+            return asciiNext[state][c];
+        }
+        while (true) {
+            Integer child = otherNext.get(key(state, c));
+            if (child != null) {
+                return child;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    /**
+     * @param state A state of the automaton.
+     * @return The indexes of the keywords ending at the character that led to the state.
+     */
+    public int[] outputs(int state) {
+        return outputs[state];
+    }
+
+    /**
+     * @return The number of keywords of the automaton.
+     */
+    public int keywordCount() {
+        return keywords.length;
+    }
+
+    /**
+     * @param index The index of a keyword.
+     * @return The keyword.
+     */
+    public String keyword(int index) {
+        return keywords[index];
+    }
+
+    /**
+     * @param index The index of a keyword.
+     * @return The length of the keyword.
+     */
+    public int keywordLength(int index) {
+        return keywordLengths[index];
+    }
+
+    /**
+     * @return The length of the longest keyword.
+     */
+    public int maxKeywordLength() {
+        return maxKeywordLength;
+    }
+
+    /**
+     * @return True if a keyword contains surrogate pairs, which are compared one char at a time.
+     */
+    public boolean hasSurrogates() {
+        return hasSurrogates;
+    }
+
+    private int child(int[][] next, char[][] labels, int[][] targets, int state, char c) {
+        if (c >= ASCII) {
+            Integer child = otherNext.get(key(state, c));
+            return child == null ? 0 : child;
+        }
+        if (next[state] != null) {
+            return next[state][c];
+        }
+        int i = labels[state] == null ? -1 : Arrays.binarySearch(labels[state], c);
+        return i >= 0 ? targets[state][i] : 0;
+    }
+
+    /**
+     * Adds the transition of a state without a table, keeping its characters sorted.
+     */
+    private static void addSparse(char[][] labels, int[][] targets, int state, char c, int child) {
+        char[] stateLabels = labels[state] == null ? NO_LABELS : labels[state];
+        int at = -Arrays.binarySearch(stateLabels, c) - 1;
+        char[] newLabels = new char[stateLabels.length + 1];
+        int[] newTargets = new int[stateLabels.length + 1];
+        System.arraycopy(stateLabels, 0, newLabels, 0, at);
+        System.arraycopy(stateLabels, at, newLabels, at + 1, stateLabels.length - at);
+        newLabels[at] = c;
+        if (targets[state] != null) {
+            System.arraycopy(targets[state], 0, newTargets, 0, at);
+            System.arraycopy(targets[state], at, newTargets, at + 1, stateLabels.length - at);
+        }
+        newTargets[at] = child;
+        labels[state] = newLabels;
+        targets[state] = newTargets;
+    }
+
+    private Map<Integer, StringBuilder> otherChildrenByState() {
+        Map<Integer, StringBuilder> children = new HashMap<>();
+        for (Long transition : otherNext.keySet()) {
+            int state = (int) (transition >>> 16);
+            children.computeIfAbsent(state, s -> new StringBuilder()).append((char) (transition & 0xFFFF));
+        }
+        return children;
+    }
+
+    private static long key(int state, char c) {
+        return ((long) state << 16) | c;
+    }
+
+    static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,308 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client library for the anonymization servers, for programs that send many requests from many threads.
+ * Requests are sent over a pool of persistent connections, TCP connections or UDP sockets, opened as they are
+ * needed and kept between calls, so a request costs neither a new process nor a new socket.
+ *
+ * Calls return at once with a CompletableFuture, and are carried out by a pool of threads, each one using a
+ * connection of the pool at a time. A request that fails is sent again over a new connection, up to the given
+ * number of retries, which is safe as hiding a keyword has no side effects on the server.
+ *
+ * The client is safe to use from any number of threads, and must be closed to release its connections.
+ */
+public class AnonymizationClient implements AutoCloseable {
+
+    /**
+     * The protocol spoken with the server.
+     */
+    public enum Transport {
+        /**
+         * Lines over persistent TCP connections, to a {@link server_java_tcp}.
+         */
+        TCP,
+        /**
+         * The binary framing of {@link TcpBinaryProtocol} over persistent TCP connections, to a {@link server_java_tcp}.
+         */
+        TCP_BINARY,
+        /**
+         * Windowed messages over UDP sockets, to a {@link server_java_udp}.
+         */
+        UDP
+    }
+
+    /**
+     * Default number of connections, and of requests in progress at once.
+     */
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    /**
+     * Default time in milliseconds to connect and to wait for a reply.
+     */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Default number of times a failed request is sent again.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    /**
+     * Number of calls that may wait for a free connection; further calls fail at once with a
+     * RejectedExecutionException.
+     */
+    public static final int QUEUE_CAPACITY = 10_000;
+
+    private final Transport transport;
+    private final String hostName;
+    private final int port;
+    private final int timeoutMillis;
+    private final int maxRetries;
+
+    private final ThreadPoolExecutor executor;
+    private final BlockingQueue<Connection> idleConnections;
+    private volatile boolean closed;
+
+    /**
+     * Creates a client with the default pool size, timeout and retries.
+     *
+     * @param transport The protocol spoken with the server.
+     * @param hostName  The server's hostname or IP address.
+     * @param port      The port of the server.
+     */
+    public AnonymizationClient(Transport transport, String hostName, int port) {
+        this(transport, hostName, port, DEFAULT_POOL_SIZE, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * Creates a client. No connection is opened until the first call.
+     *
+     * @param transport     The protocol spoken with the server.
+     * @param hostName      The server's hostname or IP address.
+     * @param port          The port of the server.
+     * @param poolSize      The number of connections, and of requests in progress at once.
+     * @param timeoutMillis The time in milliseconds to connect and to wait for a reply.
+     * @param maxRetries    The number of times a failed request is sent again, over a new connection.
+     */
+    public AnonymizationClient(Transport transport, String hostName, int port, int poolSize, int timeoutMillis,
+                               int maxRetries) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("Invalid pool size: " + poolSize);
+        }
+        this.transport = transport;
+        this.hostName = hostName;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetries = maxRetries;
+        this.idleConnections = new ArrayBlockingQueue<>(poolSize);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "anonymization-client-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Hides a keyword in a string.
+     *
+     * @param strg    The string in which the keyword is hidden.
+     * @param keyWord The keyword to be hidden, or a keyword set.
+     * @return The future string with the hidden keyword and instance counters, completed exceptionally with an
+     * IOException if the request still fails after the retries.
+     */
+    public CompletableFuture<AnonymizationResult> anonymize(String strg, String keyWord) {
+        AnonymizationRequest request = new AnonymizationRequest(strg, keyWord);
+        return submit(connection -> connection.anonymize(request));
+    }
+
+    /**
+     * Hides the keywords of a batch of requests, sent to the server as a single batch.
+     *
+     * @param requests The strings and keywords.
+     * @return The future strings with the hidden keywords and instance counters, in the order of the requests.
+     */
+    public CompletableFuture<List<AnonymizationResult>> anonymizeBatch(List<AnonymizationRequest> requests) {
+        if (requests.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        return submit(connection -> connection.anonymizeBatch(requests));
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        if (closed) {
+            throw new IllegalStateException("The client is closed");
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return execute(call);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            // the queue is full, or the client was closed meanwhile
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Carries out a call over a connection of the pool, sending it again over a new connection when it fails.
+     * A connection that failed is closed, as a late reply could still arrive on it; only a connection whose call
+     * succeeded goes back to the pool. A call refused before being sent, or a reply that cannot be parsed, fails
+     * at once without being sent again.
+     */
+    private <T> T execute(Call<T> call) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt <= maxRetries && !closed; attempt++) {
+            Connection connection = idleConnections.poll();
+            try {
+                if (connection == null) {
+                    connection = open();
+                }
+                T result = call.on(connection);
+                release(connection);
+                return result;
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                failure = e;
+            } catch (RuntimeException | Error e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                throw e;
+            }
+        }
+        throw failure != null ? failure : new IOException("The client is closed");
+    }
+
+    private Connection open() throws IOException {
+        if (transport == Transport.TCP) {
+            return new TcpConnection(client_java_tcp.connect(hostName, port, timeoutMillis));
+        }
+        if (transport == Transport.TCP_BINARY) {
+            return new TcpConnection(client_java_tcp.connectBinary(hostName, port, timeoutMillis));
+        }
+        return new UdpConnection(client_java_udp.open(timeoutMillis, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE,
+                UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE), InetAddress.getByName(hostName), port);
+    }
+
+    private void release(Connection connection) {
+        if (closed || !idleConnections.offer(connection)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Stops accepting calls, waits for the calls in progress and closes the connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A request carried out over a connection.
+     */
+    private interface Call<T> {
+        T on(Connection connection) throws IOException;
+    }
+
+    /**
+     * A persistent connection to the server, used by one thread at a time.
+     */
+    private interface Connection {
+
+        AnonymizationResult anonymize(AnonymizationRequest request) throws IOException;
+
+        List<AnonymizationResult> anonymizeBatch(List<AnonymizationRequest> requests) throws IOException;
+
+        void close();
+    }
+
+    private static final class TcpConnection implements Connection {
+
+        private final client_java_tcp client;
+
+        TcpConnection(client_java_tcp client) {
+            this.client = client;
+        }
+
+        @Override
+        public AnonymizationResult anonymize(AnonymizationRequest request) throws IOException {
+            return client.sendPipelined(Collections.singletonList(request)).get(0);
+        }
+
+        @Override
+        public List<AnonymizationResult> anonymizeBatch(List<AnonymizationRequest> requests) throws IOException {
+            return client.sendBatch(requests);
+        }
+
+        @Override
+        public void close() {
+            client.close();
+        }
+    }
+
+    private static final class UdpConnection implements Connection {
+
+        private final client_java_udp client;
+        private final InetAddress address;
+        private final int port;
+
+        UdpConnection(client_java_udp client, InetAddress address, int port) {
+            this.client = client;
+            this.address = address;
+            this.port = port;
+        }
+
+        @Override
+        public AnonymizationResult anonymize(AnonymizationRequest request) throws IOException {
+            return client.anonymize(address, port, request.getStrg(), request.getKeyWord());
+        }
+
+        @Override
+        public List<AnonymizationResult> anonymizeBatch(List<AnonymizationRequest> requests) throws IOException {
+            return client.anonymizeBatch(address, port, requests);
+        }
+
+        @Override
+        public void close() {
+            client.close();
+        }
+    }
+}
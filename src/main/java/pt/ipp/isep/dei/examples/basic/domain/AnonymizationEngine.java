@@ -0,0 +1,491 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+
+/**
+ * Hides a keyword in a string and counts its instances, as done by the TCP and UDP servers.
+ * The string is masked and counted in a single pass, writing the masked characters into a buffer that is reused
+ * from one request to the next, so a request only allocates the string returned to the client.
+ *
+ * The results are the same as those of the regular expressions the servers used:
+ * <ul>
+ *     <li>every occurrence of the keyword is replaced with 'X', ignoring the case of ASCII letters, even inside
+ *     other words;</li>
+ *     <li>only occurrences between word boundaries ("\b") of the lower-case string are counted.</li>
+ * </ul>
+ * Strings whose lower-case form is not a character by character mapping (surrogate pairs, 'İ', 'Σ' or a Turkish,
+ * Azeri or Lithuanian default locale) are handled by those regular expressions, through the {@link PatternCache}.
+ *
+ * A {@link KeywordSet} is hidden in the same single pass with an {@link AhoCorasickAutomaton}. Each keyword is hidden
+ * and counted as if it had been requested alone; a character is hidden if any of the keywords hides it, and there
+ * is one instance counter per keyword. Empty keywords of a set are ignored.
+ *
+ * A large string hidden with a single keyword is split into chunks processed in parallel ({@link ParallelChunks}).
+ *
+ * An engine is not thread-safe; {@link #forCurrentThread()} gives each thread its own.
+ */
+public class AnonymizationEngine {
+
+    private static final ThreadLocal<AnonymizationEngine> ENGINES = ThreadLocal.withInitial(AnonymizationEngine::new);
+
+    private char[] output = new char[256];
+    private int outputLength;
+    private char[] loweredKeyword = new char[32];
+    private String fallbackOutput;
+    private int[] instanceCounters = new int[1];
+    private int keywordCount;
+    private int[] maskFrom = new int[1];
+    private int[] countFrom = new int[1];
+
+    /**
+     * @return The engine of the calling thread.
+     */
+    public static AnonymizationEngine forCurrentThread() {
+        return ENGINES.get();
+    }
+
+    /**
+     * Hides the keyword in the string and counts its instances.
+     *
+     * @param strg    The string in which the keyword is hidden.
+     * @param keyword The keyword to be hidden and counted.
+     * @return The string with the keyword hidden and the number of instances of the keyword.
+     */
+    public AnonymizationResult anonymize(CharSequence strg, String keyword) {
+        process(strg, keyword);
+        return new AnonymizationResult(getMaskedStrg(), getInstanceCounters());
+    }
+
+    /**
+     * Hides the keyword in the string, leaving the result in the output buffer of the engine, and counts
+     * the instances of the keyword. The output is valid until the next call. When the servers cache results
+     * ({@link ResponseCache#shared()}), a request seen before takes its result from the cache.
+     *
+     * @param strg    The string in which the keyword is hidden.
+     * @param keyword The keyword to be hidden and counted, or a {@link KeywordSet}.
+     * @return The number of instances of the keyword in the string, or the sum over the keywords of a set.
+     */
+    public int process(CharSequence strg, String keyword) {
+        ResponseCache cache = ResponseCache.shared();
+        if (cache == null) {
+            return compute(strg, keyword);
+        }
+        ResponseCache.Key key = ResponseCache.key(strg, keyword);
+        ResponseCache.Result cached = cache.get(key);
+        if (cached != null) {
+            return restore(strg, cached);
+        }
+        int total = compute(strg, keyword);
+        cache.put(key, strg, getOutput(), getOutputLength(), getInstanceCounters());
+        return total;
+    }
+
+    private int compute(CharSequence strg, String keyword) {
+        fallbackOutput = null;
+        if (KeywordSet.isKeywordSet(keyword)) {
+            return processKeywordSet(strg, AhoCorasickAutomaton.forKeywordField(keyword));
+        }
+        keywordCount = 1;
+        instanceCounters[0] = processKeyword(strg, keyword);
+        return instanceCounters[0];
+    }
+
+    /**
+     * Takes the output and the instance counters of a cached result, as if it had been computed.
+     */
+    private int restore(CharSequence strg, ResponseCache.Result cached) {
+        fallbackOutput = null;
+        int[] counters = cached.getInstanceCounters();
+        keywordCount = counters.length;
+        if (instanceCounters.length < keywordCount) {
+            instanceCounters = new int[keywordCount];
+            maskFrom = new int[keywordCount];
+            countFrom = new int[keywordCount];
+        }
+        System.arraycopy(counters, 0, instanceCounters, 0, keywordCount);
+
+        outputLength = cached.getMaskedLength(strg);
+        if (output.length < outputLength) {
+            output = new char[Math.max(outputLength, output.length * 2)];
+        }
+        cached.writeMaskedStrg(strg, output);
+
+        int total = 0;
+        for (int counter : counters) {
+            total += counter;
+        }
+        return total;
+    }
+
+    private int processKeyword(CharSequence strg, String keyword) {
+        int length = strg.length();
+        int keywordLength = keyword.length();
+
+        if (keywordLength == 0 || !isSimpleKeyword(keyword) || !isSimpleLocale()) {
+            return processWithPatterns(strg, keyword);
+        }
+
+        if (output.length < length) {
+            output = new char[Math.max(length, output.length * 2)];
+        }
+        if (loweredKeyword.length < keywordLength) {
+            loweredKeyword = new char[Math.max(keywordLength, loweredKeyword.length * 2)];
+        }
+        for (int j = 0; j < keywordLength; j++) {
+            loweredKeyword[j] = toLowerAscii(keyword.charAt(j));
+        }
+        int instanceCounter = ParallelChunks.isWorthSplitting(length)
+                ? ParallelChunks.process(0, length, index -> !isKeywordChar(strg.charAt(index - 1), keywordLength),
+                        (from, to) -> processChunk(strg, from, to, keywordLength))
+                : processChunk(strg, 0, length, keywordLength);
+        if (instanceCounter < 0) {
+            return processWithPatterns(strg, keyword);
+        }
+        outputLength = length;
+        return instanceCounter;
+    }
+
+    /**
+     * Hides the keyword in a chunk of the string, writing it into the output buffer, and counts the instances
+     * starting in the chunk. The instances that would start in the chunk must end in it.
+     *
+     * @return The number of instances, or -1 if the chunk has a character the patterns must handle.
+     */
+    private int processChunk(CharSequence strg, int from, int to, int keywordLength) {
+        int length = strg.length();
+        char first = loweredKeyword[0];
+
+        int maskEnd = from;
+        int countFrom = from;
+        int instanceCounter = 0;
+        boolean previousIsWord = isWordAt(strg, from - 1);
+        boolean baseIsLetterOrDigit = isLetterOrDigitBefore(strg, from);
+
+        for (int i = from; i < to; i++) {
+            char c = strg.charAt(i);
+            if (!isSimpleChar(c)) {
+                return -1;
+            }
+            char lower = Character.toLowerCase(c);
+
+            // word character of the lower-case string, following java.util.regex: a non spacing mark
+            // belongs to the word of its base character
+            boolean isWord;
+            if (Character.getType(lower) == Character.NON_SPACING_MARK) {
+                isWord = baseIsLetterOrDigit;
+            } else {
+                isWord = lower == '_' || Character.isLetterOrDigit(lower);
+                baseIsLetterOrDigit = Character.isLetterOrDigit(lower);
+            }
+
+            if (i >= maskEnd && toLowerAscii(c) == first && i + keywordLength <= length
+                    && matchesIgnoringAsciiCase(strg, i, keywordLength, false)) {
+                maskEnd = i + keywordLength;
+            }
+
+            if (i >= countFrom && toLowerAscii(lower) == first && i + keywordLength <= length
+                    && previousIsWord != isWord
+                    && matchesIgnoringAsciiCase(strg, i, keywordLength, true)
+                    && isWordAt(strg, i + keywordLength - 1) != isWordAt(strg, i + keywordLength)) {
+                instanceCounter++;
+                countFrom = i + keywordLength;
+            }
+
+            output[i] = i < maskEnd ? 'X' : c;
+            previousIsWord = isWord;
+        }
+        return instanceCounter;
+    }
+
+    /**
+     * Hides every keyword of the automaton in the string and counts the instances of each one.
+     *
+     * @param strg      The string in which the keywords are hidden.
+     * @param automaton The automaton of the keywords.
+     * @return The sum of the instance counters of the keywords.
+     */
+    public int processKeywordSet(CharSequence strg, AhoCorasickAutomaton automaton) {
+        fallbackOutput = null;
+        int length = strg.length();
+        keywordCount = automaton.keywordCount();
+        if (instanceCounters.length < keywordCount) {
+            instanceCounters = new int[keywordCount];
+            maskFrom = new int[keywordCount];
+            countFrom = new int[keywordCount];
+        }
+        Arrays.fill(instanceCounters, 0, keywordCount, 0);
+        Arrays.fill(maskFrom, 0, keywordCount, 0);
+        Arrays.fill(countFrom, 0, keywordCount, 0);
+        if (output.length < length) {
+            output = new char[Math.max(length, output.length * 2)];
+        }
+        outputLength = length;
+
+        if (automaton.hasSurrogates() || !isSimpleLocale()) {
+            return processKeywordSetWithPatterns(strg, automaton);
+        }
+
+        int maskState = 0;
+        int countState = 0;
+        int maskedRunStart = 0;
+        int maskedUpTo = 0;
+        int total = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = strg.charAt(i);
+            if (!isSimpleChar(c)) {
+                return processKeywordSetWithPatterns(strg, automaton);
+            }
+            output[i] = c;
+
+            // hiding: the keywords ending here in the string, each one without overlapping itself
+            maskState = automaton.next(maskState, c);
+            for (int k : automaton.outputs(maskState)) {
+                int start = i - automaton.keywordLength(k) + 1;
+                if (start >= maskFrom[k]) {
+                    maskFrom[k] = i + 1;
+                    // only the part of the keyword outside the run of hidden characters ending here is written
+                    if (maskedUpTo <= start) {
+                        Arrays.fill(output, start, i + 1, 'X');
+                        if (maskedUpTo < start) {
+                            maskedRunStart = start;
+                        }
+                    } else {
+                        if (start < maskedRunStart) {
+                            Arrays.fill(output, start, maskedRunStart, 'X');
+                            maskedRunStart = start;
+                        }
+                        Arrays.fill(output, maskedUpTo, i + 1, 'X');
+                    }
+                    maskedUpTo = i + 1;
+                }
+            }
+
+            // counting: the keywords ending here in the lower-case string, between word boundaries
+            countState = automaton.next(countState, Character.toLowerCase(c));
+            for (int k : automaton.outputs(countState)) {
+                int start = i - automaton.keywordLength(k) + 1;
+                if (start >= countFrom[k]
+                        && isWordAt(strg, start - 1) != isWordAt(strg, start)
+                        && isWordAt(strg, i) != isWordAt(strg, i + 1)) {
+                    countFrom[k] = i + 1;
+                    instanceCounters[k]++;
+                    total++;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of instances of each keyword found by the last call, in the order of the keywords.
+     */
+    public int[] getInstanceCounters() {
+        return Arrays.copyOf(instanceCounters, keywordCount);
+    }
+
+    /**
+     * @return The buffer holding the masked string of the last call to {@link #process(CharSequence, String)}.
+     */
+    public char[] getOutput() {
+        if (fallbackOutput != null) {
+            return fallbackOutput.toCharArray();
+        }
+        return output;
+    }
+
+    /**
+     * @return The length of the masked string in the output buffer.
+     */
+    public int getOutputLength() {
+        return fallbackOutput != null ? fallbackOutput.length() : outputLength;
+    }
+
+    /**
+     * @return The masked string of the last call to {@link #process(CharSequence, String)}.
+     */
+    public String getMaskedStrg() {
+        if (fallbackOutput != null) {
+            return fallbackOutput;
+        }
+        return new String(output, 0, outputLength);
+    }
+
+    /**
+     * Checks the keyword against the string, ignoring the case of ASCII letters. The keyword is compared with the
+     * string itself for hiding it, or with the lower-case string for counting it.
+     */
+    private boolean matchesIgnoringAsciiCase(CharSequence strg, int from, int keywordLength, boolean lowerCase) {
+        for (int j = 0; j < keywordLength; j++) {
+            char c = strg.charAt(from + j);
+            if (lowerCase) {
+                c = Character.toLowerCase(c);
+            }
+            if (toLowerAscii(c) != loweredKeyword[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells if the character at an index of the lower-case string is a word character for "\b".
+     * Indexes outside the string are not word characters.
+     */
+    private static boolean isWordAt(CharSequence strg, int index) {
+        if (index < 0 || index >= strg.length()) {
+            return false;
+        }
+        char lower = Character.toLowerCase(strg.charAt(index));
+        if (lower == '_' || Character.isLetterOrDigit(lower)) {
+            return true;
+        }
+        if (Character.getType(lower) != Character.NON_SPACING_MARK) {
+            return false;
+        }
+        // a non spacing mark takes the word of the first character before it that is not a mark
+        for (int x = index - 1; x >= 0; x--) {
+            lower = Character.toLowerCase(strg.charAt(x));
+            if (Character.isLetterOrDigit(lower)) {
+                return true;
+            }
+            if (Character.getType(lower) != Character.NON_SPACING_MARK) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if the character before an index of the lower-case string that is not a non spacing mark is a letter
+     * or a digit, as the base of the marks that follow it. There is none before the string.
+     */
+    private static boolean isLetterOrDigitBefore(CharSequence strg, int index) {
+        for (int x = index - 1; x >= 0; x--) {
+            char lower = Character.toLowerCase(strg.charAt(x));
+            if (Character.getType(lower) != Character.NON_SPACING_MARK) {
+                return Character.isLetterOrDigit(lower);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if a character may be part of an instance of the keyword, in the string or in the lower-case string.
+     */
+    private boolean isKeywordChar(char c, int keywordLength) {
+        char lower = toLowerAscii(c);
+        char lowerCase = toLowerAscii(Character.toLowerCase(c));
+        for (int j = 0; j < keywordLength; j++) {
+            if (loweredKeyword[j] == lower || loweredKeyword[j] == lowerCase) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Tells if String.toLowerCase maps the character to Character.toLowerCase of itself.
+     */
+    private static boolean isSimpleChar(char c) {
+        return !Character.isSurrogate(c) && c != '\u0130' && c != '\u03A3';
+    }
+
+    private static boolean isSimpleKeyword(String keyword) {
+        for (int j = 0; j < keyword.length(); j++) {
+            if (Character.isSurrogate(keyword.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isSimpleLocale() {
+        String language = Locale.getDefault().getLanguage();
+        return !"tr".equals(language) && !"az".equals(language) && !"lt".equals(language);
+    }
+
+    /**
+     * Hides and counts the keyword with the regular expressions of the servers.
+     */
+    private int processWithPatterns(CharSequence strg, String keyword) {
+        fallbackOutput = replaceWord(strg.toString(), keyword);
+        return getInstanceCounter(keyword, strg);
+    }
+
+    /**
+     * Hides and counts every keyword of a set with the regular expressions of the servers.
+     */
+    private int processKeywordSetWithPatterns(CharSequence strg, AhoCorasickAutomaton automaton) {
+        int length = strg.length();
+        for (int i = 0; i < length; i++) {
+            output[i] = strg.charAt(i);
+        }
+        int total = 0;
+        for (int k = 0; k < keywordCount; k++) {
+            String keyword = automaton.keyword(k);
+            if (keyword.isEmpty()) {
+                continue;
+            }
+            Matcher matcher = PatternCache.shared().substringPattern(keyword).matcher(strg);
+            while (matcher.find()) {
+                Arrays.fill(output, matcher.start(), matcher.end(), 'X');
+            }
+            instanceCounters[k] = getInstanceCounter(keyword, strg);
+            total += instanceCounters[k];
+        }
+        return total;
+    }
+
+    /**
+     * Anonymizes the input string containing the keyword, by replacing each character with 'X'.
+     *
+     * @param keyword The input string to be anonymized, containing the keyword.
+     * @return A string with the same length as the input, where each character is replaced with 'X'.
+     */
+    private static String anonymizationData(String keyword) {
+        char[] hiddenKeyword = new char[keyword.length()];
+        Arrays.fill(hiddenKeyword, 'X');
+        return new String(hiddenKeyword);
+    }
+
+    /**
+     * Replaces occurrences of a specified word (keyword) in a given sentence with a hidden representation.
+     * The replacement is case-insensitive.
+     *
+     * @param str     The original sentence in which the replacement will be performed.
+     * @param keyword The keyword to be replaced in the original sentence.
+     * @return A new string with occurrences of the keyword replaced by a hidden representation.
+     */
+    static String replaceWord(String str, String keyword) {
+        String newStr = anonymizationData(keyword);
+
+        // Use a case-insensitive regular expression for replacement, compiled once per keyword
+        return PatternCache.shared().substringPattern(keyword).matcher(str).replaceAll(newStr);
+    }
+
+    /**
+     * Checks the number of instances of the keyword in the user string.
+     * Matches the keyword (pattern) in the userString using a case-insensitive regular expression.
+     *
+     * @param strgKeywordReceived The keyword to be counted within the string.
+     * @param strgReceived        The string in which occurrences of the keyword are counted.
+     * @return The number of instances of the specified keyword in the given string.
+     * @link https://www.w3schools.com/java/java_regex.asp
+     */
+    static int getInstanceCounter(String strgKeywordReceived, CharSequence strgReceived) {
+        Matcher matcher = PatternCache.shared().wordPattern(strgKeywordReceived)
+                .matcher(String.valueOf(strgReceived).toLowerCase());
+        int instanceCounter = 0;
+        while (matcher.find()) {
+            instanceCounter++;
+        }
+        return instanceCounter;
+    }
+}
@@ -0,0 +1,48 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.List;
+
+/**
+ * A string to be anonymized together with the keyword to be hidden in it.
+ */
+public class AnonymizationRequest {
+
+    private final String strg;
+    private final String keyWord;
+
+    /**
+     * Creates a request.
+     *
+     * @param strg    The string in which the keyword is hidden.
+     * @param keyWord The keyword to be hidden and counted.
+     */
+    public AnonymizationRequest(String strg, String keyWord) {
+        this.strg = strg;
+        this.keyWord = keyWord;
+    }
+
+    /**
+     * Creates a request hiding several keywords at once.
+     *
+     * @param strg     The string in which the keywords are hidden.
+     * @param keywords The keywords to be hidden and counted.
+     * @return The request, whose keyword field is a {@link KeywordSet}.
+     */
+    public static AnonymizationRequest forKeywords(String strg, List<String> keywords) {
+        return new AnonymizationRequest(strg, KeywordSet.encode(keywords));
+    }
+
+    /**
+     * @return The string in which the keyword is hidden.
+     */
+    public String getStrg() {
+        return strg;
+    }
+
+    /**
+     * @return The keyword to be hidden and counted.
+     */
+    public String getKeyWord() {
+        return keyWord;
+    }
+}
@@ -0,0 +1,96 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+/**
+ * The reply of the server to an anonymization request: the string with the keyword hidden and
+ * the number of instances of the keyword in the original string. A request hiding a {@link KeywordSet}
+ * has one instance counter per keyword.
+ */
+public class AnonymizationResult {
+
+    private final String maskedStrg;
+    private final int[] instanceCounters;
+
+    /**
+     * Creates a result.
+     *
+     * @param maskedStrg      The string with every occurrence of the keyword replaced with 'X'.
+     * @param instanceCounter The number of instances of the keyword in the original string.
+     */
+    public AnonymizationResult(String maskedStrg, int instanceCounter) {
+        this(maskedStrg, new int[]{instanceCounter});
+    }
+
+    /**
+     * Creates the result of a request hiding several keywords.
+     *
+     * @param maskedStrg       The string with every occurrence of the keywords replaced with 'X'.
+     * @param instanceCounters The number of instances of each keyword in the original string.
+     */
+    public AnonymizationResult(String maskedStrg, int[] instanceCounters) {
+        this.maskedStrg = maskedStrg;
+        this.instanceCounters = instanceCounters;
+    }
+
+    /**
+     * @return The string with every occurrence of the keyword replaced with 'X'.
+     */
+    public String getMaskedStrg() {
+        return maskedStrg;
+    }
+
+    /**
+     * @return The number of instances of the keyword in the original string, or the sum over all the keywords.
+     */
+    public int getInstanceCounter() {
+        int sum = 0;
+        for (int instanceCounter : instanceCounters) {
+            sum += instanceCounter;
+        }
+        return sum;
+    }
+
+    /**
+     * @return The number of instances of each keyword in the original string, in the order of the keywords.
+     */
+    public int[] getInstanceCounters() {
+        return instanceCounters.clone();
+    }
+
+    /**
+     * Writes instance counters as they are sent by the TCP server: a single number for a keyword,
+     * or the numbers separated by commas for a keyword set.
+     *
+     * @param instanceCounters The instance counters.
+     * @return The instance counters as text.
+     */
+    public static String formatInstanceCounters(int[] instanceCounters) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < instanceCounters.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(instanceCounters[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Reads instance counters written by {@link #formatInstanceCounters(int[])}.
+     *
+     * @param text The instance counters as text.
+     * @return The instance counters.
+     */
+    public static int[] parseInstanceCounters(String text) {
+        String[] values = text.split(",");
+        int[] instanceCounters = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            instanceCounters[i] = Integer.parseInt(values[i].trim());
+        }
+        return instanceCounters;
+    }
+
+    @Override
+    public String toString() {
+        return maskedStrg + " (" + formatInstanceCounters(instanceCounters) + ")";
+    }
+}
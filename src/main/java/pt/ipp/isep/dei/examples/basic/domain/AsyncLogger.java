@@ -0,0 +1,335 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that keeps the request threads off the console. An event is written into a ring buffer of preallocated
+ * slots, without locking or allocating, and a background thread formats the events and writes them out, one line
+ * each as {@code time level thread event key=value...}. When the buffer is full the event is dropped rather than
+ * making the request wait, and the number of dropped events is logged once there is room again.
+ *
+ * Events below the level of the logger cost a single comparison, and DEBUG and INFO events may be sampled, one in n
+ * being kept. The logger never receives the strings being anonymized unless {@link #logsPayloads()} is enabled.
+ *
+ * The logger of the servers is configured with -Dlog.level=&lt;DEBUG|INFO|WARN|ERROR&gt; (INFO),
+ * -Dlog.sample=&lt;n&gt; (1, every event), -Dlog.payload=true, -Dlog.buffer=&lt;events&gt; (8192) and
+ * -Dlog.file=&lt;path&gt; (the standard error stream).
+ */
+public final class AsyncLogger implements AutoCloseable {
+
+    /**
+     * The severity of an event.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Default number of events the ring buffer holds.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static AsyncLogger defaultLogger;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final int level;
+    private final int sampleRate;
+    private final boolean payloads;
+    private final Writer out;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a logger and starts its background thread.
+     *
+     * @param level      The lowest level logged.
+     * @param sampleRate One in how many DEBUG and INFO events is logged.
+     * @param payloads   Whether the strings being anonymized may be logged.
+     * @param capacity   The number of events the ring buffer holds, rounded up to a power of two.
+     * @param out        Where the lines are written.
+     */
+    public AsyncLogger(Level level, int sampleRate, boolean payloads, int capacity, OutputStream out) {
+        if (sampleRate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid logger: sample rate " + sampleRate + ", capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        this.mask = size - 1;
+        this.level = level.ordinal();
+        this.sampleRate = sampleRate;
+        this.payloads = payloads;
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+
+        writer = new Thread(this::drainLoop, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The logger of the process, created from the system properties the first time it is asked for, and
+     * drained when the process exits.
+     */
+    public static synchronized AsyncLogger getDefault() {
+        if (defaultLogger == null) {
+            Level level = Level.valueOf(System.getProperty("log.level", Level.INFO.name()).toUpperCase(Locale.ROOT));
+            OutputStream out = System.err;
+            String file = System.getProperty("log.file");
+            if (file != null) {
+                try {
+                    out = new FileOutputStream(file, true);
+                } catch (IOException e) {
+                    System.err.println("Log file exception: " + e.getMessage());
+                }
+            }
+            defaultLogger = new AsyncLogger(level, Integer.getInteger("log.sample", 1),
+                    Boolean.getBoolean("log.payload"), Integer.getInteger("log.buffer", DEFAULT_CAPACITY), out);
+            Runtime.getRuntime().addShutdownHook(new Thread(defaultLogger::close));
+        }
+        return defaultLogger;
+    }
+
+    /**
+     * @param level The level of an event.
+     * @return Whether events of this level are logged, before sampling.
+     */
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level;
+    }
+
+    /**
+     * @return Whether the strings being anonymized may be logged; false unless enabled explicitly.
+     */
+    public boolean logsPayloads() {
+        return payloads;
+    }
+
+    /**
+     * @return The number of events dropped because the ring buffer was full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Logs a DEBUG event, as {@link #log}.
+     */
+    public void debug(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.DEBUG, event, key1, value1, key2, value2, null, null);
+    }
+
+    /**
+     * Logs an INFO event, as {@link #log}.
+     */
+    public void info(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.INFO, event, key1, value1, key2, value2, null, null);
+    }
+
+    /**
+     * Logs a WARN event, as {@link #log}.
+     */
+    public void warn(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.WARN, event, key1, value1, key2, value2, null, null);
+    }
+
+    /**
+     * Logs an ERROR event, as {@link #log}.
+     */
+    public void error(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.ERROR, event, key1, value1, key2, value2, null, null);
+    }
+
+    /**
+     * Logs an event with up to three key and value pairs; a pair whose key is null is left out. The values are
+     * formatted with toString by the background thread, so they must not change after the call.
+     *
+     * @param level  The level of the event.
+     * @param event  The name of the event, such as "connection.open".
+     * @param key1   The key of the first value, or null.
+     * @param value1 The first value.
+     * @param key2   The key of the second value, or null.
+     * @param value2 The second value.
+     * @param key3   The key of the third value, or null.
+     * @param value3 The third value.
+     */
+    public void log(Level level, String event, String key1, Object value1, String key2, Object value2,
+                    String key3, Object value3) {
+        if (level.ordinal() < this.level || !running) {
+            return;
+        }
+        if (sampleRate > 1 && level.ordinal() <= Level.INFO.ordinal()
+                && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+
+        // claim a slot: its sequence equals the position once the writer has freed it
+        Slot slot;
+        long position = tail.get();
+        while (true) {
+            slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        slot.timeMillis = System.currentTimeMillis();
+        slot.level = level;
+        slot.thread = Thread.currentThread().getName();
+        slot.event = event;
+        slot.key1 = key1;
+        slot.value1 = value1;
+        slot.key2 = key2;
+        slot.value2 = value2;
+        slot.key3 = key3;
+        slot.value3 = value3;
+        // publish the event to the writer
+        slot.sequence = position + 1;
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (running) {
+            try {
+                boolean drained = drain(line);
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    write(line, Level.WARN, System.currentTimeMillis(), writer.getName(), "log.dropped",
+                            "count", drops - reportedDrops, null, null, null, null);
+                    reportedDrops = drops;
+                }
+                if (drained) {
+                    out.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException e) {
+                // nowhere left to report it
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes the published events, up to the size of the buffer at a time.
+     *
+     * @return Whether the buffer was left empty.
+     */
+    private boolean drain(StringBuilder line) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            Slot slot = slots[(int) head & mask];
+            if (slot.sequence != head + 1) {
+                return true;
+            }
+            write(line, slot.level, slot.timeMillis, slot.thread, slot.event,
+                    slot.key1, slot.value1, slot.key2, slot.value2, slot.key3, slot.value3);
+            slot.value1 = null;
+            slot.value2 = null;
+            slot.value3 = null;
+            // hand the slot back to the producers, one lap later
+            slot.sequence = head + slots.length;
+            head++;
+        }
+        return false;
+    }
+
+    private void write(StringBuilder line, Level level, long timeMillis, String thread, String event,
+                       String key1, Object value1, String key2, Object value2, String key3, Object value3)
+            throws IOException {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(timeMillis)).append(' ').append(level).append(' ')
+                .append(thread).append(' ').append(event);
+        appendPair(line, key1, value1);
+        appendPair(line, key2, value2);
+        appendPair(line, key3, value3);
+        line.append(System.lineSeparator());
+        out.append(line);
+    }
+
+    private static void appendPair(StringBuilder line, String key, Object value) {
+        if (key == null) {
+            return;
+        }
+        String text = String.valueOf(value);
+        line.append(' ').append(key).append('=');
+        if (text.isEmpty() || text.indexOf(' ') >= 0 || text.indexOf('"') >= 0 || text.indexOf('=') >= 0) {
+            line.append('"').append(text.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else {
+            line.append(text);
+        }
+    }
+
+    /**
+     * Stops the background thread once it has written the events already logged. Events logged afterwards are
+     * discarded.
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            drain(new StringBuilder(256));
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+    }
+
+    /**
+     * A slot of the ring buffer, reused for every event that goes through it.
+     */
+    private static final class Slot {
+
+        private volatile long sequence;
+        private long timeMillis;
+        private Level level;
+        private String thread;
+        private String event;
+        private String key1;
+        private Object value1;
+        private String key2;
+        private Object value2;
+        private String key3;
+        private Object value3;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
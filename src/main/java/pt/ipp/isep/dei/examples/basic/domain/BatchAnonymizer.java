@@ -0,0 +1,80 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hides the keywords of a batch of requests in parallel, on the common fork-join pool. The batch is split in two
+ * parts of about the same number of characters until a part holds a single request or few characters, and each
+ * part is processed with the engine of the thread running it. The results keep the order of the requests.
+ */
+public final class BatchAnonymizer {
+
+    /**
+     * Number of characters up to which a part of a batch is processed by a single thread.
+     */
+    public static final int SEQUENTIAL_THRESHOLD = 16 * 1024;
+
+    private BatchAnonymizer() {
+    }
+
+    /**
+     * Hides the keywords of every request of a batch. The calling thread takes part in the work.
+     *
+     * @param requests The strings and keywords.
+     * @return The modified strings and instance counters, in the order of the requests.
+     */
+    public static List<AnonymizationResult> anonymizeAll(List<AnonymizationRequest> requests) {
+        AnonymizationRequest[] batch = requests.toArray(new AnonymizationRequest[0]);
+        long[] offsets = new long[batch.length + 1];
+        for (int i = 0; i < batch.length; i++) {
+            offsets[i + 1] = offsets[i] + batch[i].getStrg().length();
+        }
+
+        AnonymizationResult[] results = new AnonymizationResult[batch.length];
+        new Part(batch, offsets, results, 0, batch.length).invoke();
+        return Arrays.asList(results);
+    }
+
+    /**
+     * The requests of a batch from one index up to another.
+     */
+    private static final class Part extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AnonymizationRequest[] batch;
+        private final long[] offsets;
+        private final AnonymizationResult[] results;
+        private final int from;
+        private final int to;
+
+        Part(AnonymizationRequest[] batch, long[] offsets, AnonymizationResult[] results, int from, int to) {
+            this.batch = batch;
+            this.offsets = offsets;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1 || offsets[to] - offsets[from] <= SEQUENTIAL_THRESHOLD) {
+                AnonymizationEngine engine = AnonymizationEngine.forCurrentThread();
+                for (int i = from; i < to; i++) {
+                    results[i] = engine.anonymize(batch[i].getStrg(), batch[i].getKeyWord());
+                }
+                return;
+            }
+
+            // split where half of the characters of the part are on each side
+            int middle = Arrays.binarySearch(offsets, from, to, (offsets[from] + offsets[to]) / 2);
+            if (middle < 0) {
+                middle = -middle - 1;
+            }
+            middle = Math.max(from + 1, Math.min(middle, to - 1));
+            invokeAll(new Part(batch, offsets, results, from, middle), new Part(batch, offsets, results, middle, to));
+        }
+    }
+}
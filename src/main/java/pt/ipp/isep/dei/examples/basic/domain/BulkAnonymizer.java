@@ -0,0 +1,453 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hides a keyword, or a {@link KeywordSet}, in files on the local disk and counts its instances, as the servers
+ * would for each of their lines, for offline jobs that would otherwise send every line over the network.
+ *
+ * A file is memory-mapped and split into regions ending at a line feed, which are processed in parallel by a pool of
+ * threads, several files at a time. A region is masked in windows of whole lines by a {@link LineWindowMasker}, in
+ * their UTF-8 bytes, and the masked window is written at the same offset of the output file, mapped as well and
+ * sized as the input, so no line becomes a String.
+ *
+ * A masked character is a single 'X', so the output has the length of the input unless a keyword has characters
+ * other than ASCII or the file has bytes that are not valid UTF-8, which are replaced as a client reading the file
+ * would. Such a file is written again sequentially once its regions are done.
+ */
+public class BulkAnonymizer implements AutoCloseable {
+
+    /**
+     * Default number of bytes of a region, which grows to the end of its last line.
+     */
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Number of bytes of a window, which grows to the end of its last line; below the size at which a string is split
+     * into chunks processed in parallel, as the regions already are.
+     */
+    private static final int WINDOW_SIZE = 256 * 1024;
+
+    private final LineWindowMasker masker;
+    private final int keywordCount;
+    private final int regionSize;
+    private final int threads;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a bulk anonymizer with its pool of threads.
+     *
+     * @param keyWord    A single keyword, or a keyword set built by {@link KeywordSet#encode(List)}.
+     * @param threads    The number of regions processed at once.
+     * @param regionSize The number of bytes of a region.
+     */
+    public BulkAnonymizer(String keyWord, int threads, int regionSize) {
+        this.masker = new LineWindowMasker(keyWord);
+        this.keywordCount = masker.keywordCount();
+        this.regionSize = Math.max(regionSize, 1);
+        this.threads = Math.max(threads, 1);
+        this.executor = Executors.newFixedThreadPool(this.threads);
+    }
+
+    /**
+     * Anonymizes files into a directory, under the same names. Nothing is written if two inputs have the same name,
+     * as they would be written to the same output.
+     *
+     * @param inputs          The files to be anonymized.
+     * @param outputDirectory The directory of the anonymized files, which are replaced if they exist.
+     * @return The report of each file, in the order of the inputs.
+     * @throws IOException          If a file cannot be read or written, or two inputs have the same name.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the regions.
+     */
+    public List<Report> anonymize(List<Path> inputs, Path outputDirectory) throws IOException, InterruptedException {
+        List<Path> outputs = new ArrayList<>(inputs.size());
+        Map<Path, Path> inputsByOutput = new HashMap<>();
+        for (Path input : inputs) {
+            Path output = outputDirectory.resolve(input.getFileName()).normalize();
+            Path other = inputsByOutput.putIfAbsent(output, input);
+            if (other != null) {
+                throw new IOException("Two inputs would be written to " + output + ": " + other + " and " + input);
+            }
+            if (Files.exists(output) && Files.isSameFile(input, output)) {
+                throw new IOException("The output would replace the input: " + input);
+            }
+            outputs.add(output);
+        }
+
+        List<Report> reports = new ArrayList<>(inputs.size());
+        // a few files are open at a time, enough to keep the threads busy across the end of a file
+        Deque<FileJob> running = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                if (running.size() > threads) {
+                    reports.add(running.removeFirst().finish());
+                }
+                running.addLast(start(inputs.get(i), outputs.get(i)));
+            }
+            while (!running.isEmpty()) {
+                reports.add(running.removeFirst().finish());
+            }
+        } finally {
+            for (FileJob job : running) {
+                job.close();
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Anonymizes a file.
+     *
+     * @param input  The file to be anonymized.
+     * @param output The anonymized file, which is replaced if it exists.
+     * @return The report of the file.
+     * @throws IOException          If a file cannot be read or written.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the regions.
+     */
+    public Report anonymize(Path input, Path output) throws IOException, InterruptedException {
+        return start(input, output).finish();
+    }
+
+    /**
+     * Stops the threads, once the files being anonymized are done.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private FileJob start(Path input, Path output) throws IOException {
+        FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel out;
+        try {
+            out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        FileJob job = null;
+        try {
+            long size = in.size();
+            if (size > 0) {
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+            job = new FileJob(input, in, out, regions(in));
+            for (int r = 0; r + 1 < job.regionStarts.length; r++) {
+                long from = job.regionStarts[r];
+                long to = job.regionStarts[r + 1];
+                job.regions.add(executor.submit(() -> processRegion(in, out, from, to)));
+            }
+            return job;
+        } catch (IOException | RuntimeException e) {
+            if (job != null) {
+                job.close();
+            } else {
+                in.close();
+                out.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Splits a file into regions of about the region size, each one ending at a line feed or at the end of the file.
+     *
+     * @return The offset of the first byte of each region, and the size of the file.
+     */
+    private long[] regions(FileChannel in) throws IOException {
+        long size = in.size();
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long start = 0;
+        while (size - start > regionSize) {
+            long end = start + regionSize;
+            // the region ends after the next line feed
+            buffer.clear();
+            int read;
+            long lineEnd = -1;
+            while (lineEnd < 0 && (read = in.read(buffer, end)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineEnd = end + i + 1;
+                        break;
+                    }
+                }
+                end += read;
+                buffer.clear();
+            }
+            if (lineEnd < 0 || lineEnd >= size) {
+                break;
+            }
+            if (lineEnd - start > Integer.MAX_VALUE) {
+                throw new IOException("Line longer than " + Integer.MAX_VALUE + " bytes at offset " + start);
+            }
+            starts.add(lineEnd);
+            start = lineEnd;
+        }
+        if (size - start > Integer.MAX_VALUE) {
+            throw new IOException("Line longer than " + Integer.MAX_VALUE + " bytes at offset " + start);
+        }
+        long[] regionStarts = new long[starts.size() + 1];
+        for (int r = 0; r < starts.size(); r++) {
+            regionStarts[r] = starts.get(r);
+        }
+        regionStarts[starts.size()] = size;
+        return regionStarts;
+    }
+
+    /**
+     * Hides the keyword in a region of the input, written at the same offset of the output.
+     *
+     * @return The instance counters of the region, or null if its masked bytes do not have the length of the region.
+     */
+    private long[] processRegion(FileChannel in, FileChannel out, long from, long to) throws IOException {
+        int length = (int) (to - from);
+        MappedByteBuffer input = in.map(FileChannel.MapMode.READ_ONLY, from, length);
+        MappedByteBuffer output = out.map(FileChannel.MapMode.READ_WRITE, from, length);
+        long[] counters = new long[keywordCount];
+        int start = 0;
+        while (start < length) {
+            int end = windowEnd(input, start, length);
+            ByteBuffer masked = masker.mask(input, start, end, counters);
+            if (masked.remaining() != end - start) {
+                return null;
+            }
+            output.put(masked);
+            start = end;
+        }
+        return counters;
+    }
+
+    /**
+     * Hides the keyword in a region of the input, appending it to the output at a position.
+     *
+     * @return The position after the masked region.
+     */
+    private long appendRegion(FileChannel in, FileChannel out, long from, long to, long position, long[] counters)
+            throws IOException {
+        int length = (int) (to - from);
+        MappedByteBuffer input = in.map(FileChannel.MapMode.READ_ONLY, from, length);
+        int start = 0;
+        while (start < length) {
+            int end = windowEnd(input, start, length);
+            ByteBuffer masked = masker.mask(input, start, end, counters);
+            while (masked.hasRemaining()) {
+                position += out.write(masked, position);
+            }
+            start = end;
+        }
+        return position;
+    }
+
+    /**
+     * @return The index after the last line feed of the window starting at an index, or after the first line feed
+     * following it if the window holds none, or the end of the region.
+     */
+    private static int windowEnd(ByteBuffer input, int start, int length) {
+        int limit = length - start > WINDOW_SIZE ? start + WINDOW_SIZE : length;
+        if (limit == length) {
+            return length;
+        }
+        for (int i = limit - 1; i >= start; i--) {
+            if (input.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        for (int i = limit; i < length; i++) {
+            if (input.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * A file being anonymized: its channels and the regions submitted to the threads.
+     */
+    private final class FileJob {
+
+        private final Path input;
+        private final FileChannel in;
+        private final FileChannel out;
+        private final long[] regionStarts;
+        private final List<Future<long[]>> regions = new ArrayList<>();
+
+        FileJob(Path input, FileChannel in, FileChannel out, long[] regionStarts) {
+            this.input = input;
+            this.in = in;
+            this.out = out;
+            this.regionStarts = regionStarts;
+        }
+
+        /**
+         * Waits for the regions, writes the file again sequentially if a region changed length, and closes it.
+         */
+        Report finish() throws IOException, InterruptedException {
+            try {
+                long[] counters = new long[keywordCount];
+                boolean resized = false;
+                for (Future<long[]> region : regions) {
+                    long[] regionCounters = get(region);
+                    if (regionCounters == null) {
+                        resized = true;
+                    } else {
+                        for (int k = 0; k < keywordCount; k++) {
+                            counters[k] += regionCounters[k];
+                        }
+                    }
+                }
+                if (resized) {
+                    Arrays.fill(counters, 0);
+                    long position = 0;
+                    for (int r = 0; r + 1 < regionStarts.length; r++) {
+                        position = appendRegion(in, out, regionStarts[r], regionStarts[r + 1], position, counters);
+                    }
+                    out.truncate(position);
+                }
+                return new Report(input, in.size(), counters);
+            } finally {
+                close();
+            }
+        }
+
+        void close() throws IOException {
+            for (Future<long[]> region : regions) {
+                region.cancel(false);
+            }
+            try {
+                in.close();
+            } finally {
+                out.close();
+            }
+        }
+
+        private long[] get(Future<long[]> region) throws IOException, InterruptedException {
+            try {
+                return region.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Anonymizing " + input + " failed", cause);
+            }
+        }
+    }
+
+    /**
+     * The instances of the keywords hidden in a file.
+     */
+    public static final class Report {
+
+        private final Path file;
+        private final long size;
+        private final long[] instanceCounters;
+
+        Report(Path file, long size, long[] instanceCounters) {
+            this.file = file;
+            this.size = size;
+            this.instanceCounters = instanceCounters;
+        }
+
+        /**
+         * @return The anonymized file.
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return The number of bytes of the file.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The number of instances of each keyword, in the order of the keywords.
+         */
+        public long[] getInstanceCounters() {
+            return instanceCounters.clone();
+        }
+
+        /**
+         * @return The number of instances of all the keywords.
+         */
+        public long getTotal() {
+            long total = 0;
+            for (long counter : instanceCounters) {
+                total += counter;
+            }
+            return total;
+        }
+
+        /**
+         * @return The file, its total and, for a keyword set, the counter of each keyword, separated by tabs.
+         */
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder().append(file).append('\t').append(getTotal());
+            if (instanceCounters.length > 1) {
+                for (long counter : instanceCounters) {
+                    line.append('\t').append(counter);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Anonymizes files and prints the report of each one, a line with the file and the number of instances found.
+     *
+     * @param args The keyword (several joined by '+' are hidden as a {@link KeywordSet}), the output directory and
+     *             the input files. -Dbulk.threads=&lt;threads&gt; (the number of processors) regions are processed at
+     *             once, of -Dbulk.region=&lt;bytes&gt; (64 MiB) each.
+     * @throws IOException          If a file cannot be read or written.
+     * @throws InterruptedException If the run is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: java BulkAnonymizer <keyword> <output directory> <file>...");
+            System.exit(1);
+        }
+        List<String> keywords = Arrays.asList(args[0].split("\\+"));
+        String keyWord = keywords.size() == 1 ? keywords.get(0) : KeywordSet.encode(keywords);
+        Path outputDirectory = Paths.get(args[1]);
+        Files.createDirectories(outputDirectory);
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            inputs.add(Paths.get(args[i]));
+        }
+
+        try (BulkAnonymizer anonymizer = new BulkAnonymizer(keyWord,
+                Integer.getInteger("bulk.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("bulk.region", DEFAULT_REGION_SIZE))) {
+            for (Report report : anonymizer.anonymize(inputs, outputDirectory)) {
+                System.out.println(report);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct byte buffers, so the buffers messages are reassembled in are allocated once and reused instead
+ * of being allocated, and left to the garbage collector, for every message. Buffers come in powers of two from
+ * {@link #MIN_BUFFER_SIZE}, and the pool keeps at most a given number of bytes; the buffers released beyond that
+ * are dropped. Buffers may be acquired and released by any thread.
+ *
+ * The bytes of the buffers handed out and not yet released are bounded too, since their sizes come from the
+ * clients: a buffer that would take more is refused, as is one the direct memory of the JVM has no room left for.
+ */
+public class DirectBufferPool {
+
+    /**
+     * Size of the smallest buffer handed out.
+     */
+    public static final int MIN_BUFFER_SIZE = 4096;
+
+    /**
+     * Default number of bytes kept by the pool.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Default number of bytes the buffers handed out may take together.
+     */
+    public static final long DEFAULT_MAX_ACQUIRED_BYTES = 256L * 1024 * 1024;
+
+    private final Queue<ByteBuffer>[] free;
+    private final long maxPooledBytes;
+    private final long maxAcquiredBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong acquiredBytes = new AtomicLong();
+    private final AtomicLong refusals = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param maxPooledBytes   The number of bytes the pool keeps at most in released buffers.
+     * @param maxAcquiredBytes The number of bytes the buffers handed out and not yet released may take at most.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DirectBufferPool(long maxPooledBytes, long maxAcquiredBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.maxAcquiredBytes = maxAcquiredBytes;
+        this.free = new Queue[32];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if none of its size is free.
+     *
+     * @param capacity The number of bytes needed.
+     * @return A cleared buffer whose limit is the number of bytes needed, or null if the buffers handed out would
+     * take more than the pool allows, or the JVM has no direct memory left for it.
+     */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        int size = 1 << sizeClass;
+        if (acquiredBytes.addAndGet(size) > maxAcquiredBytes) {
+            acquiredBytes.addAndGet(-size);
+            refusals.incrementAndGet();
+            return null;
+        }
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            try {
+                buffer = ByteBuffer.allocateDirect(size);
+            } catch (OutOfMemoryError e) {
+                // the direct memory of the JVM is exhausted, which the heap is not
+                acquiredBytes.addAndGet(-size);
+                refusals.incrementAndGet();
+                return null;
+            }
+        } else {
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer A buffer acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        acquiredBytes.addAndGet(-buffer.capacity());
+        if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        free[Integer.numberOfTrailingZeros(buffer.capacity())].add(buffer);
+    }
+
+    private static int sizeClass(int capacity) {
+        int size = Math.max(MIN_BUFFER_SIZE, capacity);
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * @return The number of buffers allocated because none was free.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return The number of bytes held by the buffers currently free in the pool.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return The number of bytes held by the buffers handed out and not yet released.
+     */
+    public long getAcquiredBytes() {
+        return acquiredBytes.get();
+    }
+
+    /**
+     * @return The number of buffers refused because they would have taken too much memory.
+     */
+    public long getRefusals() {
+        return refusals.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DirectBufferPool[pooledBytes=" + pooledBytes.get() + ", acquiredBytes=" + acquiredBytes.get()
+                + ", allocations=" + allocations.get() + ", refusals=" + refusals.get() + "]";
+    }
+}
@@ -0,0 +1,69 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+/**
+ * Finds where an instance of an ASCII keyword may start in a string encoded in UTF-8, so the bytes in between are
+ * skipped by {@link Utf8Anonymizer} instead of being looked at one by one. A byte is a candidate when, ignoring the
+ * case of ASCII letters, it is the first byte of the keyword and the byte where the instance would end is the last
+ * byte of the keyword. A byte that is not ASCII is also returned, since its character has to be decoded.
+ *
+ * This scanner compares the bytes one at a time. When the vector profile has built src/main/java17, which Maven
+ * does on JDK 17 and later, and the JVM runs with --add-modules jdk.incubator.vector, the scanner of the process
+ * is a VectorKeywordScanner instead, comparing many bytes at once with the Vector API; -Danonymization.vector=false
+ * keeps this one.
+ */
+class KeywordScanner {
+
+    private static final String VECTOR_SCANNER = KeywordScanner.class.getPackageName() + ".VectorKeywordScanner";
+
+    private static final KeywordScanner SHARED = create(Boolean.parseBoolean(
+            System.getProperty("anonymization.vector", "true")));
+
+    /**
+     * @return The scanner of the process, which is thread-safe.
+     */
+    static KeywordScanner shared() {
+        return SHARED;
+    }
+
+    private static KeywordScanner create(boolean vector) {
+        if (vector) {
+            try {
+                return (KeywordScanner) Class.forName(VECTOR_SCANNER).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // built without the vector profile, or running without the incubator module
+            }
+        }
+        return new KeywordScanner();
+    }
+
+    /**
+     * Finds the first candidate or non-ASCII byte of a string.
+     *
+     * @param strg          The buffer holding the string, encoded in UTF-8.
+     * @param from          The index of the first byte looked at.
+     * @param to            The index after the last byte of the string.
+     * @param first         The first byte of the keyword, in lower case.
+     * @param last          The last byte of the keyword, in lower case.
+     * @param keywordLength The number of bytes of the keyword.
+     * @return The index of the byte, or the end of the string if there is none.
+     */
+    int next(byte[] strg, int from, int to, byte first, byte last, int keywordLength) {
+        int lastOffset = keywordLength - 1;
+        for (int i = from; i < to; i++) {
+            byte b = strg[i];
+            if (b < 0 || toLowerAscii(b) == first && i + lastOffset < to
+                    && toLowerAscii(strg[i + lastOffset]) == last) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    static byte toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    static byte toUpperAscii(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,77 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes several keywords into the keyword field of a request, so a single request hides all of them.
+ * The field starts with {@link #MARKER} and the keywords are separated by {@link #SEPARATOR}; both are control
+ * characters that do not appear in keywords typed by users. A field without the marker is a single keyword.
+ *
+ * The server answers a keyword set with the string with every keyword hidden and one instance counter per keyword,
+ * in the order of the keywords, separated by commas.
+ */
+public final class KeywordSet {
+
+    /**
+     * First character of a keyword field holding a set of keywords.
+     */
+    public static final char MARKER = '\u0001';
+
+    /**
+     * Character separating the keywords of a set.
+     */
+    public static final char SEPARATOR = '\u001F';
+
+    private KeywordSet() {
+    }
+
+    /**
+     * Tells if a keyword field holds a set of keywords.
+     *
+     * @param keyWord The keyword field of a request.
+     * @return True if the field was built by {@link #encode(List)}.
+     */
+    public static boolean isKeywordSet(String keyWord) {
+        return !keyWord.isEmpty() && keyWord.charAt(0) == MARKER;
+    }
+
+    /**
+     * Builds the keyword field of a request hiding several keywords.
+     *
+     * @param keywords The keywords to be hidden and counted.
+     * @return The keyword field to be sent to the server.
+     */
+    public static String encode(List<String> keywords) {
+        StringBuilder field = new StringBuilder().append(MARKER);
+        for (int i = 0; i < keywords.size(); i++) {
+            String keyword = keywords.get(i);
+            if (keyword.indexOf(SEPARATOR) >= 0 || keyword.indexOf('\n') >= 0 || keyword.indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Invalid keyword: " + keyword);
+            }
+            if (i > 0) {
+                field.append(SEPARATOR);
+            }
+            field.append(keyword);
+        }
+        return field.toString();
+    }
+
+    /**
+     * Splits the keyword field of a request into its keywords.
+     *
+     * @param keyWord The keyword field of a request, starting with {@link #MARKER}.
+     * @return The keywords of the set, in order.
+     */
+    public static List<String> decode(String keyWord) {
+        List<String> keywords = new ArrayList<>();
+        int start = 1;
+        for (int i = 1; i <= keyWord.length(); i++) {
+            if (i == keyWord.length() || keyWord.charAt(i) == SEPARATOR) {
+                keywords.add(keyWord.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return keywords;
+    }
+}
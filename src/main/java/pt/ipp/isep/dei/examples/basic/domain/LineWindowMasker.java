@@ -0,0 +1,132 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hides a keyword, or a {@link KeywordSet}, in windows of whole lines of a file encoded in UTF-8, for the offline
+ * modes ({@link BulkAnonymizer}, {@link RedactionPipeline}). A window is copied into a buffer of the thread and
+ * hidden in its bytes by the {@link Utf8Anonymizer}, or decoded and given to the {@link AnonymizationEngine} when
+ * the anonymizer cannot handle it, so no line becomes a String. As no instance of a keyword spans a line feed,
+ * hiding a window at once gives the same result as hiding its lines one by one.
+ *
+ * A masker is thread-safe: the buffers are those of the calling thread.
+ */
+final class LineWindowMasker {
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final String keyWord;
+    private final ByteBuffer keywordBytes;
+    private final int keywordCount;
+
+    /**
+     * @param keyWord A single keyword, or a keyword set built by {@link KeywordSet#encode(java.util.List)}.
+     */
+    LineWindowMasker(String keyWord) {
+        if (keyWord.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Invalid keyword: " + keyWord);
+        }
+        this.keyWord = keyWord;
+        this.keywordBytes = KeywordSet.isKeywordSet(keyWord) || !AnonymizationEngine.isSimpleLocale()
+                ? null : ByteBuffer.wrap(keyWord.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        this.keywordCount = KeywordSet.isKeywordSet(keyWord) ? KeywordSet.decode(keyWord).size() : 1;
+    }
+
+    /**
+     * @return The number of keywords, which is the length of the counters.
+     */
+    int keywordCount() {
+        return keywordCount;
+    }
+
+    /**
+     * Hides the keyword in a window of the input, adding its instances to the counters.
+     *
+     * @param input    The bytes holding the window; its position is changed.
+     * @param start    The index of the first byte of the window.
+     * @param end      The index after the last line feed of the window, or after the end of the input.
+     * @param counters The instance counter of each keyword.
+     * @return The masked bytes, valid until the next window of the thread.
+     */
+    ByteBuffer mask(ByteBuffer input, int start, int end, long[] counters) {
+        Buffers buffers = BUFFERS.get();
+        int length = end - start;
+        byte[] window = buffers.window(length);
+        input.position(start);
+        input.get(window, 0, length);
+
+        if (keywordBytes != null) {
+            Utf8Anonymizer anonymizer = Utf8Anonymizer.forCurrentThread();
+            if (anonymizer.setKeyword(keywordBytes, 0, keywordBytes.limit())) {
+                int instanceCounter = anonymizer.process(window, 0, length);
+                if (instanceCounter != Utf8Anonymizer.UNSUPPORTED) {
+                    counters[0] += instanceCounter;
+                    return ByteBuffer.wrap(window, 0, length);
+                }
+                // the window was left partly masked
+                input.position(start);
+                input.get(window, 0, length);
+            }
+        }
+
+        AnonymizationEngine engine = AnonymizationEngine.forCurrentThread();
+        engine.process(buffers.decode(window, length), keyWord);
+        int[] instanceCounters = engine.getInstanceCounters();
+        for (int k = 0; k < instanceCounters.length; k++) {
+            counters[k] += instanceCounters[k];
+        }
+        return buffers.encode(engine.getOutput(), engine.getOutputLength());
+    }
+
+    /**
+     * The buffers a thread reuses from one window to the next.
+     */
+    private static final class Buffers {
+
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private byte[] window = new byte[INITIAL_SIZE];
+        private CharBuffer chars = CharBuffer.allocate(INITIAL_SIZE);
+        private ByteBuffer encoded = ByteBuffer.allocate(INITIAL_SIZE);
+
+        byte[] window(int length) {
+            if (window.length < length) {
+                window = new byte[length];
+            }
+            return window;
+        }
+
+        CharBuffer decode(byte[] bytes, int length) {
+            // a UTF-8 byte never decodes to more than one character
+            if (chars.capacity() < length) {
+                chars = CharBuffer.allocate(length);
+            }
+            chars.clear();
+            decoder.reset();
+            decoder.decode(ByteBuffer.wrap(bytes, 0, length), chars, true);
+            decoder.flush(chars);
+            return chars.flip();
+        }
+
+        ByteBuffer encode(char[] masked, int length) {
+            int maxLength = (int) Math.min(Integer.MAX_VALUE, (long) length * 3);
+            if (encoded.capacity() < maxLength) {
+                encoded = ByteBuffer.allocate(maxLength);
+            }
+            encoded.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(masked, 0, length), encoded, true);
+            encoder.flush(encoded);
+            return encoded.flip();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a TCP or UDP server with requests from many concurrent clients and reports the throughput and the
+ * latency percentiles, every second and for the whole run, so the load at which a server saturates can be found.
+ *
+ * In a closed loop, each client sends its next request as soon as it has the reply to the previous one. In an open
+ * loop, requests are due at a fixed rate whatever the server does, and their latency is measured from the time they
+ * were due, so the time a request waited for a free client is counted as the server falling behind would make a
+ * real caller wait.
+ *
+ * The requests are drawn from a workload mixing payload sizes and keywords with given weights.
+ */
+public class LoadGenerator {
+
+    private static final String[] WORDS = {
+            "the", "socket", "server", "client", "datagram", "stream", "packet", "window", "network", "message",
+            "of", "and", "a", "to", "in", "protocol", "buffer", "thread", "request", "reply"
+    };
+
+    private final AnonymizationClient.Transport transport;
+    private final String hostName;
+    private final int port;
+    private final int concurrency;
+    private final int requestsPerSecond;
+    private final List<AnonymizationRequest> workload;
+
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong nextRequest = new AtomicLong();
+
+    /**
+     * Creates a load generator.
+     *
+     * @param transport         The protocol of the server.
+     * @param hostName          The server's hostname or IP address.
+     * @param port              The port of the server.
+     * @param concurrency       The number of clients, each one with its own connection.
+     * @param requestsPerSecond The rate of an open loop, or 0 for a closed loop.
+     * @param workload          The requests to draw from, at random.
+     */
+    public LoadGenerator(AnonymizationClient.Transport transport, String hostName, int port, int concurrency,
+                         int requestsPerSecond, List<AnonymizationRequest> workload) {
+        if (concurrency <= 0 || requestsPerSecond < 0 || workload.isEmpty()) {
+            throw new IllegalArgumentException("Invalid load: " + concurrency + " clients, "
+                    + requestsPerSecond + " requests per second, " + workload.size() + " requests");
+        }
+        this.transport = transport;
+        this.hostName = hostName;
+        this.port = port;
+        this.concurrency = concurrency;
+        this.requestsPerSecond = requestsPerSecond;
+        this.workload = workload;
+    }
+
+    /**
+     * Builds a workload mixing payload sizes and keywords. Both are given as comma separated values, each one
+     * followed by its weight after a colon, 1 if omitted, such as {@code "64:8,4096:2,65536"}. A keyword made of
+     * several words joined by '+' is sent as a {@link KeywordSet}. About one word in twenty of the strings is one of
+     * the keywords, in any case.
+     *
+     * @param sizes    The payload sizes in characters, and their weights.
+     * @param keywords The keywords, and their weights.
+     * @param count    The number of requests of the workload.
+     * @param seed     The seed of the random choices, so runs can be repeated.
+     * @return The requests.
+     */
+    public static List<AnonymizationRequest> workload(String sizes, String keywords, int count, long seed) {
+        Random random = new Random(seed);
+        Weighted sizeMix = new Weighted(sizes);
+        Weighted keywordMix = new Weighted(keywords);
+
+        List<AnonymizationRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int size = Integer.parseInt(sizeMix.pick(random));
+            List<String> keywordList = Arrays.asList(keywordMix.pick(random).split("\\+"));
+            String keyWord = keywordList.size() == 1 ? keywordList.get(0) : KeywordSet.encode(keywordList);
+            requests.add(new AnonymizationRequest(text(size, keywordList, random), keyWord));
+        }
+        return requests;
+    }
+
+    private static String text(int size, List<String> keywords, Random random) {
+        // a request holds at least one character, taken from a word rather than padded
+        int length = Math.max(1, size);
+        StringBuilder text = new StringBuilder(length + 32);
+        while (text.length() < length) {
+            if (random.nextInt(20) == 0) {
+                String keyword = keywords.get(random.nextInt(keywords.size()));
+                text.append(random.nextBoolean() ? keyword : keyword.toUpperCase(Locale.ROOT));
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            text.append(' ');
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    /**
+     * Sends requests for the warm-up and then for the measured duration, printing the throughput and latencies of
+     * every second and of the whole measured run.
+     *
+     * @param warmupSeconds   The time during which requests are sent but not measured.
+     * @param durationSeconds The measured time.
+     * @return The latencies of the measured requests.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public LatencyHistogram run(int warmupSeconds, int durationSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        List<Thread> clients = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Thread client = new Thread(() -> drive(start, measureStart, end), "load-client-" + (i + 1));
+            client.setDaemon(true);
+            client.start();
+            clients.add(client);
+        }
+
+        // report every second of the measured run
+        long reportAt = measureStart;
+        while (System.nanoTime() - end < 0) {
+            reportAt += TimeUnit.SECONDS.toNanos(1);
+            LockSupport.parkNanos(reportAt - System.nanoTime());
+            LatencyHistogram second = interval.getAndSet(new LatencyHistogram());
+            if (reportAt - measureStart > 0) {
+                System.out.printf("%4ds %8d req/s  p50=%.3f p99=%.3f p99.9=%.3f ms  errors=%d%n",
+                        TimeUnit.NANOSECONDS.toSeconds(reportAt - measureStart), second.getCount(),
+                        second.getValueAtPercentile(50) / 1e6, second.getValueAtPercentile(99) / 1e6,
+                        second.getValueAtPercentile(99.9) / 1e6, errors.sum());
+            }
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        System.out.printf("%s %s:%d, %d clients, %s: %.1f req/s, %d errors%n", transport, hostName, port, concurrency,
+                requestsPerSecond == 0 ? "closed loop" : requestsPerSecond + " req/s open loop",
+                total.getCount() / (double) durationSeconds, errors.sum());
+        System.out.println(total.summary());
+        return total;
+    }
+
+    /**
+     * Sends requests from one client until the end of the run, over a connection opened again after a failure.
+     */
+    private void drive(long start, long measureStart, long end) {
+        Connection connection = null;
+        long period = requestsPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+
+        while (true) {
+            long due;
+            if (requestsPerSecond == 0) {
+                due = System.nanoTime();
+            } else {
+                // the open loop takes the next slot of the schedule, shared by every client
+                due = start + nextRequest.getAndIncrement() * period;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            if (due - end >= 0) {
+                break;
+            }
+
+            AnonymizationRequest request = workload.get(ThreadLocalRandom.current().nextInt(workload.size()));
+            try {
+                if (connection == null) {
+                    connection = new Connection();
+                }
+                connection.send(request);
+            } catch (IOException | RuntimeException e) {
+                // a broken connection, or a reply that could not be read, leaves the connection out of step
+                errors.increment();
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                continue;
+            }
+
+            long latency = System.nanoTime() - due;
+            if (due - measureStart >= 0) {
+                total.record(latency);
+                interval.get().record(latency);
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * The connection of a client, over the transport of the generator.
+     */
+    private final class Connection {
+
+        private final client_java_tcp tcpClient;
+        private final client_java_udp udpClient;
+        private final InetAddress address;
+
+        Connection() throws IOException {
+            if (transport == AnonymizationClient.Transport.TCP) {
+                tcpClient = client_java_tcp.connect(hostName, port, AnonymizationClient.DEFAULT_TIMEOUT_MILLIS);
+                udpClient = null;
+                address = null;
+            } else if (transport == AnonymizationClient.Transport.TCP_BINARY) {
+                tcpClient = client_java_tcp.connectBinary(hostName, port, AnonymizationClient.DEFAULT_TIMEOUT_MILLIS);
+                udpClient = null;
+                address = null;
+            } else {
+                tcpClient = null;
+                udpClient = client_java_udp.open(AnonymizationClient.DEFAULT_TIMEOUT_MILLIS,
+                        SelectiveRepeatSender.DEFAULT_WINDOW_SIZE, UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE);
+                address = InetAddress.getByName(hostName);
+            }
+        }
+
+        void send(AnonymizationRequest request) throws IOException {
+            if (tcpClient != null) {
+                tcpClient.sendPipelined(Collections.singletonList(request));
+            } else {
+                udpClient.anonymize(address, port, request.getStrg(), request.getKeyWord());
+            }
+        }
+
+        void close() {
+            if (tcpClient != null) {
+                tcpClient.close();
+            } else {
+                udpClient.close();
+            }
+        }
+    }
+
+    /**
+     * Values chosen at random with given weights.
+     */
+    private static final class Weighted {
+
+        private final String[] values;
+        private final double[] cumulativeWeights;
+
+        Weighted(String spec) {
+            String[] entries = spec.split(",");
+            values = new String[entries.length];
+            cumulativeWeights = new double[entries.length];
+            double sum = 0;
+            for (int i = 0; i < entries.length; i++) {
+                int colon = entries[i].lastIndexOf(':');
+                values[i] = (colon < 0 ? entries[i] : entries[i].substring(0, colon)).trim();
+                double weight = colon < 0 ? 1 : Double.parseDouble(entries[i].substring(colon + 1));
+                if (values[i].isEmpty() || !(weight > 0)) {
+                    throw new IllegalArgumentException("Invalid entry: " + entries[i]);
+                }
+                sum += weight;
+                cumulativeWeights[i] = sum;
+            }
+        }
+
+        String pick(Random random) {
+            double point = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+            for (int i = 0; i < values.length - 1; i++) {
+                if (point < cumulativeWeights[i]) {
+                    return values[i];
+                }
+            }
+            return values[values.length - 1];
+        }
+    }
+
+    /**
+     * Runs a load test.
+     *
+     * @param args The transport ("tcp", "tcp_binary" or "udp"), the server's hostname and its port. The load is set with
+     *             -Dload.concurrency=&lt;clients&gt; (16), -Dload.rate=&lt;requests per second&gt; (0, a closed loop),
+     *             -Dload.warmup=&lt;seconds&gt; (5), -Dload.duration=&lt;seconds&gt; (30),
+     *             -Dload.sizes=&lt;size:weight,...&gt; ("64:6,1024:3,16384:1") and
+     *             -Dload.keywords=&lt;keyword:weight,...&gt; ("secret:3,secret+password+token:1").
+     * @throws InterruptedException If the run is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: java LoadGenerator <tcp|tcp_binary|udp> <host> <port>");
+            System.exit(1);
+        }
+        AnonymizationClient.Transport transport = AnonymizationClient.Transport.valueOf(args[0].toUpperCase(Locale.ROOT));
+        int port = Integer.parseInt(args[2]);
+
+        List<AnonymizationRequest> workload = workload(
+                System.getProperty("load.sizes", "64:6,1024:3,16384:1"),
+                System.getProperty("load.keywords", "secret:3,secret+password+token:1"),
+                1000, 42);
+
+        LoadGenerator generator = new LoadGenerator(transport, args[1], port,
+                Integer.getInteger("load.concurrency", 16), Integer.getInteger("load.rate", 0), workload);
+        generator.run(Integer.getInteger("load.warmup", 5), Integer.getInteger("load.duration", 30));
+    }
+}
@@ -0,0 +1,114 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+
+/**
+ * Hides and counts a keyword in a large string as chunks processed in parallel by the common fork-join pool, for
+ * {@link AnonymizationEngine} and {@link Utf8Anonymizer}.
+ *
+ * A chunk only starts right after a character that cannot be part of an instance of the keyword, so no instance
+ * straddles two chunks: each instance is hidden and counted by the chunk it starts in, whose state at its first
+ * character is the same as if the string had been processed from the beginning. The word of the characters before
+ * a chunk, needed for the "\b" of its first instance, is looked up by the chunk itself. A chunk grows past its size
+ * until such a character is found, so a string made only of the characters of the keyword is a single chunk.
+ *
+ * Strings of at least -Danonymization.parallel.threshold characters (1 Mi by default, 0 never splits) are split
+ * into chunks of at least -Danonymization.parallel.chunk characters (256 Ki by default), when the common pool has
+ * more than one thread.
+ */
+final class ParallelChunks {
+
+    private static final int THRESHOLD = Integer.getInteger("anonymization.parallel.threshold", 1 << 20);
+    private static final int CHUNK_SIZE = Math.max(Integer.getInteger("anonymization.parallel.chunk", 1 << 18), 1);
+
+    /**
+     * Hides and counts the keyword in a chunk of a string.
+     */
+    interface Chunk {
+
+        /**
+         * @param from The index of the first character of the chunk.
+         * @param to   The index after the last character of the chunk.
+         * @return The number of instances of the keyword starting in the chunk, or a negative number if the string
+         * must be handled another way.
+         */
+        int process(int from, int to);
+    }
+
+    private ParallelChunks() {
+    }
+
+    /**
+     * @param length The length of a string.
+     * @return Whether the string is worth splitting into chunks processed in parallel.
+     */
+    static boolean isWorthSplitting(int length) {
+        return THRESHOLD > 0 && length >= THRESHOLD && length > CHUNK_SIZE
+                && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    /**
+     * Splits a string into chunks and processes them in parallel, the calling thread taking part.
+     *
+     * @param from       The index of the first character of the string.
+     * @param to         The index after the last character of the string.
+     * @param canStartAt Tells if a chunk can start at an index, as the character before it is never part of an
+     *                   instance of the keyword.
+     * @param chunk      Processes a chunk.
+     * @return The sum of the instance counters of the chunks, or a negative number if a chunk returned one.
+     */
+    static int process(int from, int to, IntPredicate canStartAt, Chunk chunk) {
+        int[] starts = new int[(to - from) / CHUNK_SIZE + 2];
+        int chunks = 0;
+        starts[chunks++] = from;
+        for (int start = from + CHUNK_SIZE; start < to; start += CHUNK_SIZE) {
+            while (start < to && !canStartAt.test(start)) {
+                start++;
+            }
+            if (start == to) {
+                break;
+            }
+            starts[chunks++] = start;
+        }
+        starts[chunks] = to;
+        if (chunks == 1) {
+            return chunk.process(from, to);
+        }
+        return new ChunkTask(starts, 0, chunks, chunk).invoke();
+    }
+
+    /**
+     * Processes the chunks between two indexes of the start array, halving them until a single one is left.
+     */
+    private static final class ChunkTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] starts;
+        private final int first;
+        private final int last;
+        private final transient Chunk chunk;
+
+        ChunkTask(int[] starts, int first, int last, Chunk chunk) {
+            this.starts = starts;
+            this.first = first;
+            this.last = last;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (last - first == 1) {
+                return chunk.process(starts[first], starts[last]);
+            }
+            int middle = (first + last) >>> 1;
+            ChunkTask left = new ChunkTask(starts, first, middle, chunk);
+            left.fork();
+            int right = new ChunkTask(starts, middle, last, chunk).compute();
+            int counted = left.join();
+            return counted < 0 || right < 0 ? -1 : counted + right;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the regular expressions used to hide and count keywords, so a keyword that is requested again does not
+ * have its pattern compiled again. Patterns are keyed by the keyword and the kind of match, and the least recently
+ * used ones are evicted when the cache is full. Compiled patterns are immutable and can be shared by all threads.
+ */
+public class PatternCache {
+
+    /**
+     * Default maximum number of patterns kept by the shared cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    // the size of the shared cache can be set with -Danonymization.patternCache.size=<n>
+    private static final PatternCache SHARED =
+            new PatternCache(Integer.getInteger("anonymization.patternCache.size", DEFAULT_MAX_SIZE));
+
+    private final LruCache<Key, Pattern> patterns;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxSize The maximum number of patterns kept by the cache.
+     */
+    public PatternCache(int maxSize) {
+        this.patterns = new LruCache<>(maxSize);
+    }
+
+    /**
+     * @return The cache shared by the servers.
+     */
+    public static PatternCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the pattern matching the keyword anywhere in a string, ignoring case.
+     *
+     * @param keyword The keyword to be matched.
+     * @return The compiled pattern.
+     */
+    public Pattern substringPattern(String keyword) {
+        return patterns.get(new Key(keyword, false),
+                key -> Pattern.compile("(?i)" + Pattern.quote(key.keyword)));
+    }
+
+    /**
+     * Returns the pattern matching the keyword as a whole word, between word boundaries, ignoring case.
+     *
+     * @param keyword The keyword to be matched.
+     * @return The compiled pattern.
+     */
+    public Pattern wordPattern(String keyword) {
+        return patterns.get(new Key(keyword, true),
+                key -> Pattern.compile("\\b" + Pattern.quote(key.keyword) + "\\b", Pattern.CASE_INSENSITIVE));
+    }
+
+    /**
+     * @return The number of lookups that found their pattern already compiled.
+     */
+    public long getHits() {
+        return patterns.getHits();
+    }
+
+    /**
+     * @return The number of lookups that had to compile their pattern.
+     */
+    public long getMisses() {
+        return patterns.getMisses();
+    }
+
+    /**
+     * @return The fraction of lookups that found their pattern already compiled.
+     */
+    public double getHitRatio() {
+        return patterns.getHitRatio();
+    }
+
+    @Override
+    public String toString() {
+        return "PatternCache[" + patterns + "]";
+    }
+
+    /**
+     * A keyword together with the kind of match its pattern performs.
+     */
+    private static final class Key {
+
+        private final String keyword;
+        private final boolean wholeWord;
+
+        Key(String keyword, boolean wholeWord) {
+            this.keyword = keyword;
+            this.wholeWord = wholeWord;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return wholeWord == other.wholeWord && keyword.equals(other.keyword);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keyword, wholeWord);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Hides a keyword, or a {@link KeywordSet}, in every file of a directory tree, writing the hidden files into another
+ * tree, and reports the throughput and the instances of each keyword.
+ *
+ * The files go through four stages connected by bounded queues, so a stage that falls behind makes the stages
+ * before it wait instead of filling the memory:
+ * <ol>
+ *     <li>read: a thread reads the files, in the order of their paths, in blocks;</li>
+ *     <li>split: a thread cuts the blocks into chunks of whole lines;</li>
+ *     <li>mask and count: a pool of threads, one per processor by default, hides the keywords in the chunks with a
+ *     {@link LineWindowMasker}, as the servers would in each line;</li>
+ *     <li>write: a thread writes the hidden chunks of each file in order, next to the output file, which replaces it
+ *     once complete.</li>
+ * </ol>
+ * Each completed file is appended to a checkpoint with its instance counters, so a run that was interrupted skips
+ * those files when it is started again, and still reports their instances.
+ */
+public class RedactionPipeline {
+
+    /**
+     * Default number of bytes read at a time from a file.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    /**
+     * Name of the checkpoint file in the output directory, unless another one is given.
+     */
+    public static final String CHECKPOINT_FILE = ".redaction-checkpoint";
+
+    /**
+     * Number of bytes of the longest chunk, which holds at least a whole line.
+     */
+    public static final int MAX_CHUNK_LENGTH = Integer.MAX_VALUE - 8;
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final String keyWord;
+    private final LineWindowMasker masker;
+    private final int threads;
+    private final int queueCapacity;
+    private final int blockSize;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param keyWord       A single keyword, or a keyword set built by {@link KeywordSet#encode(List)}.
+     * @param threads       The number of threads hiding the keywords.
+     * @param queueCapacity The number of blocks or chunks each queue holds.
+     * @param blockSize     The number of bytes read at a time from a file.
+     */
+    public RedactionPipeline(String keyWord, int threads, int queueCapacity, int blockSize) {
+        this.keyWord = keyWord;
+        this.masker = new LineWindowMasker(keyWord);
+        this.threads = Math.max(threads, 1);
+        this.queueCapacity = Math.max(queueCapacity, 1);
+        this.blockSize = Math.max(blockSize, 1);
+    }
+
+    /**
+     * Hides the keywords in the files of a directory tree.
+     *
+     * @param inputDirectory  The root of the files to be hidden.
+     * @param outputDirectory The root of the hidden files, each one at the same relative path as its input.
+     * @param checkpoint      The checkpoint of the files already hidden by previous runs, created if needed.
+     * @param include         The files of the tree to be hidden, matched on their paths relative to the input root.
+     * @return The summary of the run, including the files of the checkpoint.
+     * @throws IOException          If a file cannot be read or written, or the checkpoint is for other keywords.
+     * @throws InterruptedException If the calling thread is interrupted, which stops the stages.
+     */
+    public Summary run(Path inputDirectory, Path outputDirectory, Path checkpoint, PathMatcher include)
+            throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        Map<Path, long[]> done = readCheckpoint(checkpoint);
+        long[] totals = new long[masker.keywordCount()];
+        for (long[] counters : done.values()) {
+            add(totals, counters);
+        }
+        List<Path> files = files(inputDirectory, outputDirectory, include, done);
+
+        BlockingQueue<Block> blocks = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Future<Chunk>> chunks = new ArrayBlockingQueue<>(queueCapacity);
+        ExecutorService stages = Executors.newFixedThreadPool(3);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Summary summary = new Summary(done.size(), totals);
+        try (BufferedWriter checkpointWriter = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (done.isEmpty() && Files.size(checkpoint) == 0) {
+                checkpointWriter.write(keyWord);
+                checkpointWriter.newLine();
+                checkpointWriter.flush();
+            }
+            CompletionService<Void> completion = new ExecutorCompletionService<>(stages);
+            List<Future<Void>> running = new ArrayList<>();
+            running.add(completion.submit(() -> read(inputDirectory, files, blocks)));
+            running.add(completion.submit(() -> split(blocks, chunks, workers)));
+            running.add(completion.submit(() -> write(outputDirectory, chunks, checkpointWriter, summary)));
+            await(completion, running);
+        } finally {
+            stages.shutdownNow();
+            workers.shutdownNow();
+        }
+        summary.seconds = (System.nanoTime() - startTime) / 1e9;
+        return summary;
+    }
+
+    /**
+     * Waits for the stages to end; when one of them fails, stops the others, which may be waiting on a queue, and
+     * throws its exception.
+     */
+    private static void await(CompletionService<Void> completion, List<Future<Void>> stages)
+            throws IOException, InterruptedException {
+        try {
+            for (int i = 0; i < stages.size(); i++) {
+                completion.take().get();
+            }
+        } catch (ExecutionException e) {
+            for (Future<Void> stage : stages) {
+                stage.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof ExecutionException) {
+                // a chunk the writer waited for
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("A stage of the pipeline failed", cause);
+        } catch (InterruptedException e) {
+            for (Future<Void> stage : stages) {
+                stage.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The first stage: reads the files in blocks, the last block of a file being marked, and a null file at the end.
+     */
+    private Void read(Path inputDirectory, List<Path> files, BlockingQueue<Block> blocks)
+            throws IOException, InterruptedException {
+        for (Path file : files) {
+            try (InputStream in = Files.newInputStream(inputDirectory.resolve(file))) {
+                byte[] bytes = new byte[blockSize];
+                int length = in.readNBytes(bytes, 0, blockSize);
+                while (true) {
+                    // a block is only known to be the last one of the file once the next one is read
+                    byte[] next = length < blockSize ? null : new byte[blockSize];
+                    int nextLength = next == null ? 0 : in.readNBytes(next, 0, blockSize);
+                    boolean last = nextLength == 0;
+                    blocks.put(new Block(file, bytes, length, last));
+                    if (last) {
+                        break;
+                    }
+                    bytes = next;
+                    length = nextLength;
+                }
+            }
+        }
+        blocks.put(new Block(null, null, 0, true));
+        return null;
+    }
+
+    /**
+     * The second stage: joins the blocks of a file and cuts them after their last line feed, handing each chunk of
+     * whole lines to the workers, and the chunk to come to the writer in order.
+     */
+    private Void split(BlockingQueue<Block> blocks, BlockingQueue<Future<Chunk>> chunks, ExecutorService workers)
+            throws IOException, InterruptedException {
+        // the start of a line no block has ended yet, copied once the line ends
+        List<Block> carried = new ArrayList<>();
+        long carriedLength = 0;
+        while (true) {
+            Block block = blocks.take();
+            if (block.file == null) {
+                chunks.put(CompletableFuture.completedFuture(new Chunk(null, null, null, true)));
+                return null;
+            }
+            int cut = block.last ? block.length : lastLineEnd(block.bytes, block.length);
+            if (carriedLength + cut > MAX_CHUNK_LENGTH
+                    || cut == 0 && !block.last && carriedLength + block.length > MAX_CHUNK_LENGTH) {
+                throw new IOException("Line longer than " + MAX_CHUNK_LENGTH + " bytes in " + block.file);
+            }
+            if (cut == 0 && !block.last) {
+                // no line ends in the block, which is carried whole to the next one
+                carried.add(block);
+                carriedLength += block.length;
+                continue;
+            }
+            byte[] lines = block.bytes;
+            int linesLength = (int) carriedLength + cut;
+            if (!carried.isEmpty()) {
+                lines = new byte[linesLength];
+                int position = 0;
+                for (Block part : carried) {
+                    System.arraycopy(part.bytes, 0, lines, position, part.length);
+                    position += part.length;
+                }
+                System.arraycopy(block.bytes, 0, lines, position, cut);
+                carried.clear();
+                carriedLength = 0;
+            }
+            if (cut < block.length) {
+                carried.add(new Block(block.file, Arrays.copyOfRange(block.bytes, cut, block.length),
+                        block.length - cut, false));
+                carriedLength = block.length - cut;
+            }
+            Path file = block.file;
+            boolean last = block.last;
+            byte[] chunk = lines;
+            chunks.put(workers.submit(() -> mask(file, chunk, linesLength, last)));
+        }
+    }
+
+    /**
+     * The third stage, on the pool of workers: hides the keywords in a chunk of whole lines.
+     */
+    private Chunk mask(Path file, byte[] lines, int length, boolean last) {
+        long[] counters = new long[masker.keywordCount()];
+        ByteBuffer masked = masker.mask(ByteBuffer.wrap(lines, 0, length), 0, length, counters);
+        // the masked bytes are in a buffer of the worker, which hides the next chunk in it
+        byte[] bytes = new byte[masked.remaining()];
+        masked.get(bytes);
+        return new Chunk(file, bytes, counters, last);
+    }
+
+    /**
+     * The last stage: writes the chunks of each file in order, then replaces the output file and records it in the
+     * checkpoint.
+     */
+    private Void write(Path outputDirectory, BlockingQueue<Future<Chunk>> chunks, BufferedWriter checkpointWriter,
+                       Summary summary) throws IOException, InterruptedException, ExecutionException {
+        OutputStream out = null;
+        Path part = null;
+        long[] counters = new long[masker.keywordCount()];
+        try {
+            while (true) {
+                Chunk chunk = chunks.take().get();
+                if (chunk.file == null) {
+                    return null;
+                }
+                if (out == null) {
+                    Path output = outputDirectory.resolve(chunk.file);
+                    Files.createDirectories(output.getParent());
+                    part = output.resolveSibling(output.getFileName() + PART_SUFFIX);
+                    out = Files.newOutputStream(part);
+                }
+                out.write(chunk.bytes);
+                add(counters, chunk.counters);
+                summary.bytes += chunk.bytes.length;
+                if (chunk.last) {
+                    out.close();
+                    out = null;
+                    Files.move(part, outputDirectory.resolve(chunk.file), StandardCopyOption.REPLACE_EXISTING);
+                    writeCheckpoint(checkpointWriter, chunk.file, counters);
+                    add(summary.totals, counters);
+                    summary.files++;
+                    counters = new long[masker.keywordCount()];
+                }
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static int lastLineEnd(byte[] bytes, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static void add(long[] totals, long[] counters) {
+        for (int k = 0; k < totals.length; k++) {
+            totals[k] += counters[k];
+        }
+    }
+
+    /**
+     * Lists the regular files of the tree matching the filter and not in the checkpoint, leaving out the output tree.
+     */
+    private static List<Path> files(Path inputDirectory, Path outputDirectory, PathMatcher include,
+                                    Map<Path, long[]> done) throws IOException {
+        Path outputRoot = outputDirectory.toAbsolutePath().normalize();
+        try (Stream<Path> tree = Files.walk(inputDirectory)) {
+            return tree.filter(Files::isRegularFile)
+                    .filter(path -> !path.toAbsolutePath().normalize().startsWith(outputRoot))
+                    .map(inputDirectory::relativize)
+                    .filter(include::matches)
+                    .filter(path -> !done.containsKey(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Reads the files a checkpoint records as done, each one on a line with its instance counters, then its path,
+     * separated by tabs. The first line holds the keyword field of the run. A last line without its terminator was
+     * being written when a run was interrupted: it is left out, and cut from the file so that the lines this run
+     * appends start on a line of their own.
+     */
+    private Map<Path, long[]> readCheckpoint(Path checkpoint) throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return Collections.emptyMap();
+        }
+        byte[] bytes = Files.readAllBytes(checkpoint);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        if (end < bytes.length) {
+            try (FileChannel channel = FileChannel.open(checkpoint, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        Map<Path, long[]> done = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new StringReader(new String(bytes, 0, end, StandardCharsets.UTF_8)))) {
+            String line = reader.readLine();
+            if (line != null && !line.equals(keyWord)) {
+                throw new IOException("The checkpoint " + checkpoint + " was written for other keywords");
+            }
+            int keywordCount = masker.keywordCount();
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", keywordCount + 1);
+                if (fields.length <= keywordCount) {
+                    throw new IOException("Invalid line in the checkpoint " + checkpoint + ": " + line);
+                }
+                long[] counters = new long[keywordCount];
+                for (int k = 0; k < keywordCount; k++) {
+                    counters[k] = Long.parseLong(fields[k]);
+                }
+                done.put(Paths.get(fields[keywordCount]), counters);
+            }
+        }
+        return done;
+    }
+
+    private static void writeCheckpoint(BufferedWriter checkpointWriter, Path file, long[] counters)
+            throws IOException {
+        for (long counter : counters) {
+            checkpointWriter.write(Long.toString(counter));
+            checkpointWriter.write('\t');
+        }
+        checkpointWriter.write(file.toString());
+        checkpointWriter.newLine();
+        checkpointWriter.flush();
+    }
+
+    /**
+     * A block of bytes read from a file.
+     */
+    private static final class Block {
+
+        private final Path file;
+        private final byte[] bytes;
+        private final int length;
+        private final boolean last;
+
+        Block(Path file, byte[] bytes, int length, boolean last) {
+            this.file = file;
+            this.bytes = bytes;
+            this.length = length;
+            this.last = last;
+        }
+    }
+
+    /**
+     * The hidden bytes of whole lines of a file and the instances found in them.
+     */
+    private static final class Chunk {
+
+        private final Path file;
+        private final byte[] bytes;
+        private final long[] counters;
+        private final boolean last;
+
+        Chunk(Path file, byte[] bytes, long[] counters, boolean last) {
+            this.file = file;
+            this.bytes = bytes;
+            this.counters = counters;
+            this.last = last;
+        }
+    }
+
+    /**
+     * The files and bytes hidden by a run, its duration and the instances of each keyword.
+     */
+    public static final class Summary {
+
+        private final int skippedFiles;
+        private final long[] totals;
+        private int files;
+        private long bytes;
+        private double seconds;
+
+        Summary(int skippedFiles, long[] totals) {
+            this.skippedFiles = skippedFiles;
+            this.totals = totals;
+        }
+
+        /**
+         * @return The number of files hidden by this run.
+         */
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * @return The number of files skipped as the checkpoint records them.
+         */
+        public int getSkippedFiles() {
+            return skippedFiles;
+        }
+
+        /**
+         * @return The number of bytes written by this run.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The duration of the run, in seconds.
+         */
+        public double getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * @return The number of instances of each keyword in all the files, in the order of the keywords.
+         */
+        public long[] getTotals() {
+            return totals.clone();
+        }
+    }
+
+    /**
+     * Hides keywords in a directory tree and prints the throughput and the instances of each keyword.
+     *
+     * @param args The keyword (several joined by '+' are hidden as a {@link KeywordSet}), the input directory and
+     *             the output directory. -Dpipeline.threads=&lt;threads&gt; (the number of processors) hide the
+     *             keywords, -Dpipeline.queue=&lt;blocks&gt; (twice the threads) are held by each queue,
+     *             -Dpipeline.block=&lt;bytes&gt; (256 KiB) are read at a time, -Dpipeline.include=&lt;glob&gt;
+     *             ("**") selects the files and -Dpipeline.checkpoint=&lt;file&gt; (.redaction-checkpoint in the
+     *             output directory) records the files done.
+     * @throws IOException          If a file cannot be read or written.
+     * @throws InterruptedException If the run is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: java RedactionPipeline <keyword> <input directory> <output directory>");
+            System.exit(1);
+        }
+        List<String> keywords = Arrays.asList(args[0].split("\\+"));
+        String keyWord = keywords.size() == 1 ? keywords.get(0) : KeywordSet.encode(keywords);
+        Path inputDirectory = Paths.get(args[1]);
+        Path outputDirectory = Paths.get(args[2]);
+        Files.createDirectories(outputDirectory);
+        String checkpointFile = System.getProperty("pipeline.checkpoint");
+        Path checkpoint = checkpointFile != null ? Paths.get(checkpointFile) : outputDirectory.resolve(CHECKPOINT_FILE);
+        PathMatcher include = FileSystems.getDefault()
+                .getPathMatcher("glob:" + System.getProperty("pipeline.include", "**"));
+
+        int threads = Integer.getInteger("pipeline.threads", Runtime.getRuntime().availableProcessors());
+        RedactionPipeline pipeline = new RedactionPipeline(keyWord, threads,
+                Integer.getInteger("pipeline.queue", 2 * threads),
+                Integer.getInteger("pipeline.block", DEFAULT_BLOCK_SIZE));
+        Summary summary = pipeline.run(inputDirectory, outputDirectory, checkpoint, include);
+
+        System.out.printf("%d files, %d bytes in %.1f s: %.1f MB/s (%d files already done)%n",
+                summary.getFiles(), summary.getBytes(), summary.getSeconds(),
+                summary.getBytes() / 1e6 / Math.max(summary.getSeconds(), 1e-9), summary.getSkippedFiles());
+        long[] totals = summary.getTotals();
+        for (int k = 0; k < totals.length; k++) {
+            System.out.println(keywords.get(k) + "\t" + totals[k]);
+        }
+    }
+}
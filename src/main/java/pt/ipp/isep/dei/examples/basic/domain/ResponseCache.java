@@ -0,0 +1,388 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the results of requests, so a string that is sent again with the same keyword is not matched again.
+ * Much of the traffic of the servers is the same template strings hidden with the same keywords.
+ *
+ * The results are keyed by a 128-bit hash of the string and the keyword, seeded at random when the process starts so
+ * clients cannot craft colliding requests, and the strings themselves are not kept. A result keeps the instance
+ * counters and, instead of the masked string, the ranges of characters that were hidden, from which the masked string
+ * is rebuilt out of the string of the request; only a short string, or one with more hidden ranges than characters,
+ * is kept whole.
+ *
+ * The cache is bounded by the estimated bytes of its results: the least recently used ones are evicted to make room,
+ * and a result larger than a sixteenth of the cache is not kept. A result may also expire a fixed time after it was
+ * computed. Hits, misses, evictions and expirations are counted so the cache can be sized from its hit ratio.
+ */
+public class ResponseCache {
+
+    /**
+     * Default time after which a result expires, 0 for never.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 0;
+
+    // the servers cache results with -Danonymization.responseCache.bytes=<bytes>, and expire them
+    // with -Danonymization.responseCache.ttl=<milliseconds>
+    private static final ResponseCache SHARED = createShared(
+            Long.getLong("anonymization.responseCache.bytes", 0),
+            Long.getLong("anonymization.responseCache.ttl", DEFAULT_TTL_MILLIS));
+
+    // strings this short are kept whole, their ranges would not be smaller
+    private static final int SHORT_STRING_LENGTH = 64;
+
+    // estimated bytes of an entry of the map, its key and the fields of its result
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final long SEED1;
+    private static final long SEED2;
+
+    static {
+        SecureRandom random = new SecureRandom();
+        SEED1 = random.nextLong();
+        SEED2 = random.nextLong();
+    }
+
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Result> results = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxBytes  The estimated bytes the results may take.
+     * @param ttlMillis The time after which a result expires, or 0 for never.
+     */
+    public ResponseCache(long maxBytes, long ttlMillis) {
+        if (maxBytes < 1 || ttlMillis < 0) {
+            throw new IllegalArgumentException("Invalid cache: " + maxBytes + " bytes, TTL " + ttlMillis + " ms");
+        }
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    private static ResponseCache createShared(long maxBytes, long ttlMillis) {
+        return maxBytes > 0 ? new ResponseCache(maxBytes, ttlMillis) : null;
+    }
+
+    /**
+     * @return The cache of the servers, or null if the servers do not cache results.
+     */
+    public static ResponseCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Hashes a request into the key of its result.
+     *
+     * @param strg    The string of the request.
+     * @param keyword The keyword of the request, or a keyword set.
+     * @return The key.
+     */
+    public static Key key(CharSequence strg, String keyword) {
+        long h1 = SEED1;
+        long h2 = SEED2;
+        for (int part = 0; part < 2; part++) {
+            CharSequence text = part == 0 ? strg : keyword;
+            int length = text.length();
+            int i = 0;
+            // four characters at a time, then the rest
+            for (; i + 4 <= length; i += 4) {
+                long word = text.charAt(i) | (long) text.charAt(i + 1) << 16
+                        | (long) text.charAt(i + 2) << 32 | (long) text.charAt(i + 3) << 48;
+                h1 = Long.rotateLeft(h1 ^ word * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+                h2 = Long.rotateLeft(h2 + word * 0x9E3779B97F4A7C15L, 27) * 0xC2B2AE3D27D4EB4FL;
+            }
+            long word = 0;
+            for (int shift = 0; i < length; i++, shift += 16) {
+                word |= (long) text.charAt(i) << shift;
+            }
+            h1 = Long.rotateLeft(h1 ^ word * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+            h2 = Long.rotateLeft(h2 + word * 0x9E3779B97F4A7C15L, 27) * 0xC2B2AE3D27D4EB4FL;
+            // the length separates the string from the keyword
+            h1 ^= length;
+            h2 ^= (long) length << 32;
+            h1 += h2;
+            h2 += h1;
+        }
+        h1 = mix(h1);
+        h2 = mix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new Key(h1, h2);
+    }
+
+    // the final mix of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Looks a result up.
+     *
+     * @param key The key of the request.
+     * @return The result, or null if it is not cached or has expired.
+     */
+    public Result get(Key key) {
+        Result result;
+        synchronized (results) {
+            result = results.get(key);
+            if (result != null && ttlNanos > 0 && System.nanoTime() - result.created > ttlNanos) {
+                results.remove(key);
+                bytes -= result.bytes;
+                expirations.increment();
+                result = null;
+            }
+        }
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the result of a request, evicting the least recently used results to make room.
+     *
+     * @param key              The key of the request.
+     * @param strg             The string of the request.
+     * @param masked           The buffer holding the masked string.
+     * @param maskedLength     The length of the masked string.
+     * @param instanceCounters The instance counters, one per keyword.
+     */
+    public void put(Key key, CharSequence strg, char[] masked, int maskedLength, int[] instanceCounters) {
+        Result result = Result.of(strg, masked, maskedLength, instanceCounters);
+        if (result.bytes > maxBytes / 16) {
+            return;
+        }
+        synchronized (results) {
+            Result previous = results.put(key, result);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            bytes += result.bytes;
+
+            Iterator<Result> eldest = results.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * @return The number of results in the cache.
+     */
+    public int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    /**
+     * @return The estimated bytes taken by the results in the cache.
+     */
+    public long getBytes() {
+        synchronized (results) {
+            return bytes;
+        }
+    }
+
+    /**
+     * @return The estimated bytes the results may take.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The number of lookups that found their result in the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to compute their result.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of results removed to make room for new ones.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of results removed because they expired.
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return The fraction of lookups that found their result in the cache, or 0 if there were none.
+     */
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bytes=%d/%d size=%d hits=%d misses=%d evictions=%d expirations=%d hitRatio=%.3f",
+                getBytes(), maxBytes, size(), getHits(), getMisses(), getEvictions(), getExpirations(),
+                getHitRatio());
+    }
+
+    /**
+     * The 128-bit hash of a request.
+     */
+    public static final class Key {
+
+        private final long h1;
+        private final long h2;
+
+        Key(long h1, long h2) {
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return h1 == other.h1 && h2 == other.h2;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) h1;
+        }
+    }
+
+    /**
+     * The result of a request: its instance counters, and its masked string or the ranges of hidden characters.
+     */
+    public static final class Result {
+
+        private final int[] instanceCounters;
+        private final char[] maskedStrg;
+        private final int[] hiddenRanges;
+        private final int bytes;
+        private final long created = System.nanoTime();
+
+        private Result(int[] instanceCounters, char[] maskedStrg, int[] hiddenRanges) {
+            this.instanceCounters = instanceCounters;
+            this.maskedStrg = maskedStrg;
+            this.hiddenRanges = hiddenRanges;
+            this.bytes = ENTRY_OVERHEAD + 4 * instanceCounters.length
+                    + (maskedStrg != null ? 2 * maskedStrg.length : 4 * hiddenRanges.length);
+        }
+
+        /**
+         * Keeps the ranges of characters the masked string hides with 'X', or the whole masked string if it is
+         * short, if the ranges would take more room, or if it is not the string with some characters hidden.
+         */
+        static Result of(CharSequence strg, char[] masked, int maskedLength, int[] instanceCounters) {
+            int length = strg.length();
+            int ranges = 0;
+            boolean rangesFit = length == maskedLength && length > SHORT_STRING_LENGTH;
+            for (int i = 0; rangesFit && i < length; i++) {
+                if (masked[i] != strg.charAt(i)) {
+                    if (masked[i] != 'X') {
+                        rangesFit = false;
+                    } else if (i == 0 || masked[i - 1] == strg.charAt(i - 1)) {
+                        ranges++;
+                    }
+                }
+            }
+            if (!rangesFit || 2 * ranges >= length / 2) {
+                return new Result(instanceCounters, Arrays.copyOf(masked, maskedLength), null);
+            }
+
+            int[] hiddenRanges = new int[2 * ranges];
+            int r = 0;
+            for (int i = 0; i < length; i++) {
+                if (masked[i] != strg.charAt(i) && (i == 0 || masked[i - 1] == strg.charAt(i - 1))) {
+                    hiddenRanges[r] = i;
+                } else if (masked[i] == strg.charAt(i) && i > 0 && masked[i - 1] != strg.charAt(i - 1)) {
+                    hiddenRanges[r + 1] = i;
+                    r += 2;
+                }
+            }
+            if (r < hiddenRanges.length) {
+                // the last range ends the string
+                hiddenRanges[r + 1] = length;
+            }
+            return new Result(instanceCounters, null, hiddenRanges);
+        }
+
+        /**
+         * @return The instance counters, one per keyword; they must not be modified.
+         */
+        public int[] getInstanceCounters() {
+            return instanceCounters;
+        }
+
+        /**
+         * @param strg The string of the request.
+         * @return The length of the masked string.
+         */
+        public int getMaskedLength(CharSequence strg) {
+            return maskedStrg != null ? maskedStrg.length : strg.length();
+        }
+
+        /**
+         * Writes the masked string into a buffer.
+         *
+         * @param strg   The string of the request.
+         * @param output The buffer, at least {@link #getMaskedLength} characters long.
+         */
+        public void writeMaskedStrg(CharSequence strg, char[] output) {
+            if (maskedStrg != null) {
+                System.arraycopy(maskedStrg, 0, output, 0, maskedStrg.length);
+                return;
+            }
+            int length = strg.length();
+            if (strg instanceof String) {
+                ((String) strg).getChars(0, length, output, 0);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    output[i] = strg.charAt(i);
+                }
+            }
+            for (int r = 0; r < hiddenRanges.length; r += 2) {
+                Arrays.fill(output, hiddenRanges[r], hiddenRanges[r + 1], 'X');
+            }
+        }
+    }
+}
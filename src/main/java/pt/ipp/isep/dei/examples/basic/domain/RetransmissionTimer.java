@@ -0,0 +1,79 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the retransmission timeout of a UDP sender from the round trip times it measures, as TCP does
+ * (RFC 6298): a smoothed round trip time plus four times its variation. Samples are only taken from segments
+ * sent once, since the acknowledgment of a retransmitted segment cannot tell which copy it answers (Karn's rule),
+ * and the timeout doubles after each expiry until a new sample arrives.
+ */
+public class RetransmissionTimer {
+
+    /**
+     * Timeout used before the first round trip is measured, the timeout of the original protocol.
+     */
+    public static final long INITIAL_RTO_MILLIS = 500;
+
+    /**
+     * Lowest timeout, so a few fast round trips on a LAN do not cause spurious retransmissions.
+     */
+    public static final long MIN_RTO_MILLIS = 10;
+
+    /**
+     * Highest timeout, reached after repeated expiries.
+     */
+    public static final long MAX_RTO_MILLIS = 10_000;
+
+    private long smoothedRtt = -1;
+    private long rttVariation;
+    private long rto = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO_MILLIS);
+
+    /**
+     * Updates the timeout with a new round trip time.
+     *
+     * @param rttNanos The time between sending a segment once and receiving its acknowledgment.
+     */
+    public synchronized void sample(long rttNanos) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttNanos;
+            rttVariation = rttNanos / 2;
+        } else {
+            rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rttNanos)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rttNanos) / 8;
+        }
+        rto = clamp(smoothedRtt + 4 * rttVariation);
+    }
+
+    /**
+     * Doubles the timeout after it expired.
+     */
+    public synchronized void backOff() {
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * @return The current retransmission timeout in nanoseconds.
+     */
+    public synchronized long getRtoNanos() {
+        return rto;
+    }
+
+    /**
+     * @return The smoothed round trip time in nanoseconds, or -1 if none was measured.
+     */
+    public synchronized long getSmoothedRttNanos() {
+        return smoothedRtt;
+    }
+
+    private static long clamp(long nanos) {
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_RTO_MILLIS),
+                Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_RTO_MILLIS), nanos));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetransmissionTimer[srtt=" + TimeUnit.NANOSECONDS.toMicros(smoothedRtt) + "us, rto="
+                + TimeUnit.NANOSECONDS.toMillis(rto) + "ms]";
+    }
+}
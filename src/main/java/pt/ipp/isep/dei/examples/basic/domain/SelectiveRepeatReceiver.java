@@ -0,0 +1,252 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Reassembles a message received in {@link UdpProtocol#DATA} segments, which may arrive in any order and more
+ * than once. Each segment is copied to its place in the message as it arrives, and the acknowledgment tells the
+ * sender which segments are still missing.
+ *
+ * Acknowledgments are delayed so one covers a whole burst of segments: an acknowledgment is due at once for a
+ * segment flagged with {@link UdpProtocol#ACK_REQUESTED}, a segment arriving out of order or twice, and the last
+ * segment of the message; otherwise it is pending, and should be sent within {@link #DELAYED_ACK_MILLIS}.
+ *
+ * The number of segments and their size are announced by the sender, so nothing is allocated from them up front:
+ * the buffer of the message grows, doubling, as the segments arrive, and a segment further ahead of those received
+ * in order than an acknowledgment can tell is dropped, so the buffer only ever holds what the sender really sent.
+ */
+public class SelectiveRepeatReceiver {
+
+    // the bitmap of an acknowledgment covers the next 2048 segments, enough for any window in use
+    private static final int MAX_BITMAP_BYTES = 256;
+
+    /**
+     * Largest size of an acknowledgment datagram.
+     */
+    public static final int MAX_ACK_SIZE = UdpProtocol.HEADER_SIZE + MAX_BITMAP_BYTES;
+
+    /**
+     * Longest time an acknowledgment that is not due at once may wait for more segments.
+     */
+    public static final int DELAYED_ACK_MILLIS = 2;
+
+    // the buffer of a message sent in a single datagram is never grown
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final int messageId;
+    private final int total;
+    private final int segmentSize;
+    private final int capacity;
+    private final DirectBufferPool pool;
+    private ByteBuffer message;
+    private boolean taken;
+    private final BitSet received = new BitSet();
+    private int length;
+    private int receivedCount;
+    private int cumulative;
+    private int highest = -1;
+    private boolean ackPending;
+    private boolean ackDue;
+
+    /**
+     * Creates the reassembly state of a message.
+     *
+     * @param messageId   The id of the message.
+     * @param total       The number of segments of the message, as announced by the sender.
+     * @param segmentSize The size of the segments, as announced by the sender.
+     */
+    public SelectiveRepeatReceiver(int messageId, int total, int segmentSize) {
+        this(messageId, total, segmentSize, null);
+    }
+
+    /**
+     * Creates the reassembly state of a message, in buffers taken from a pool. The buffer is handed over by
+     * {@link #takeMessage()} and should be given back to the pool once the message has been read; the buffers it
+     * outgrew are given back as it grows.
+     *
+     * @param messageId   The id of the message.
+     * @param total       The number of segments of the message, as announced by the sender.
+     * @param segmentSize The size of the segments, as announced by the sender.
+     * @param pool        The pool the buffer of the message is taken from.
+     */
+    public SelectiveRepeatReceiver(int messageId, int total, int segmentSize, DirectBufferPool pool) {
+        this.messageId = messageId;
+        this.total = total;
+        this.segmentSize = segmentSize;
+        this.capacity = capacity(total, segmentSize);
+        this.pool = pool;
+    }
+
+    private static int capacity(int total, int segmentSize) {
+        if (segmentSize <= 0 || segmentSize > UdpProtocol.MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        if (total <= 0 || total > UdpProtocol.segmentCount(UdpProtocol.MAX_MESSAGE_SIZE, segmentSize)) {
+            throw new IllegalArgumentException("Invalid number of segments: " + total);
+        }
+        return total * segmentSize;
+    }
+
+    private boolean isInWindow(int sequence) {
+        return sequence >= 0 && sequence < total && sequence - cumulative <= MAX_BITMAP_BYTES * 8;
+    }
+
+    /**
+     * Grows the buffer of the message, if needed, so a new segment fits in it.
+     *
+     * @param sequence The sequence number of the segment.
+     * @return False if the pool has no room left for the larger buffer; the segment should then be dropped, and
+     * will be sent again.
+     */
+    public boolean reserve(int sequence) {
+        if (taken || !isInWindow(sequence) || received.get(sequence)) {
+            // nothing is stored for this segment
+            return true;
+        }
+        int end = Math.min(capacity, (sequence + 1) * segmentSize);
+        int size = message == null ? 0 : message.limit();
+        if (end <= size) {
+            return true;
+        }
+        int grown = Math.min(capacity, Math.max(end, size == 0 ? INITIAL_BUFFER_SIZE : 2 * size));
+        ByteBuffer buffer = pool == null ? ByteBuffer.allocate(grown) : pool.acquire(grown);
+        if (buffer == null) {
+            return false;
+        }
+        if (message != null) {
+            buffer.put(message.position(0).limit(size));
+            if (pool != null) {
+                pool.release(message);
+            }
+        }
+        message = buffer;
+        return true;
+    }
+
+    /**
+     * Copies a segment to its place in the message.
+     *
+     * @param sequence The sequence number of the segment.
+     * @param flags    The flags of the segment.
+     * @param payload  The payload of the segment, from its position to its limit, which is consumed.
+     * @return True if the segment is new, false if it is a duplicate, does not belong to the message or does not
+     * fit in the buffers of the pool.
+     */
+    public boolean accept(int sequence, byte flags, ByteBuffer payload) {
+        int size = payload.remaining();
+        if (!isInWindow(sequence) || size > segmentSize || (sequence < total - 1 && size != segmentSize)
+                || !reserve(sequence)) {
+            return false;
+        }
+        ackPending = true;
+        if (received.get(sequence)) {
+            // the sender missed the acknowledgment
+            ackDue = true;
+            return false;
+        }
+        ackDue |= (flags & UdpProtocol.ACK_REQUESTED) != 0 || sequence != cumulative;
+        message.position(sequence * segmentSize);
+        message.put(payload);
+        received.set(sequence);
+        receivedCount++;
+        highest = Math.max(highest, sequence);
+        if (sequence == total - 1) {
+            length = sequence * segmentSize + size;
+        }
+        cumulative = Math.min(received.nextClearBit(cumulative), total);
+        ackDue |= receivedCount == total;
+        return true;
+    }
+
+    /**
+     * Writes the acknowledgment of the segments received so far: the number of segments received in order,
+     * followed by a bitmap where bit i tells if the segment after them plus i was received.
+     *
+     * @param buffer The buffer of the datagram, positioned at its start.
+     */
+    public void writeAck(ByteBuffer buffer) {
+        UdpProtocol.writeHeader(buffer, UdpProtocol.ACK, (byte) 0, messageId, cumulative, total, segmentSize);
+        ackPending = false;
+        ackDue = false;
+        int bits = Math.min(highest - cumulative, MAX_BITMAP_BYTES * 8);
+        for (int b = 0; b < (bits + 7) / 8; b++) {
+            int value = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                int sequence = cumulative + 1 + b * 8 + bit;
+                if (sequence < total && received.get(sequence)) {
+                    value |= 1 << bit;
+                }
+            }
+            buffer.put((byte) value);
+        }
+    }
+
+    /**
+     * @return True if segments arrived since the last acknowledgment was written.
+     */
+    public boolean isAckPending() {
+        return ackPending;
+    }
+
+    /**
+     * @return True if the acknowledgment should be sent without delay.
+     */
+    public boolean isAckDue() {
+        return ackDue;
+    }
+
+    /**
+     * Drops the pending acknowledgment, because something else tells the sender its segments arrived, such as the
+     * reply to the message.
+     */
+    public void cancelAck() {
+        ackPending = false;
+        ackDue = false;
+    }
+
+    /**
+     * @return True once every segment has been received.
+     */
+    public boolean isComplete() {
+        return receivedCount == total;
+    }
+
+    /**
+     * @return The size of the segments of the message.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return The id of the message.
+     */
+    public int getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Hands over the buffer of the message. The receiver keeps acknowledging the segments of the message, in case
+     * the sender missed their acknowledgment, without holding on to it.
+     *
+     * @return The buffer of the message, holding the whole message once it is complete, or null if it was
+     * already handed over.
+     */
+    public ByteBuffer takeMessage() {
+        ByteBuffer complete = message;
+        message = null;
+        taken = true;
+        if (complete != null) {
+            complete.position(0).limit(length);
+        }
+        return complete;
+    }
+
+    /**
+     * @return The length of the message, known once its last segment has arrived.
+     */
+    public int getLength() {
+        return length;
+    }
+}
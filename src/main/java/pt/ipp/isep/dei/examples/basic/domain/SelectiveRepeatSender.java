@@ -0,0 +1,265 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sends a message over UDP as a window of {@link UdpProtocol#DATA} segments, instead of waiting for the
+ * acknowledgment of each segment before sending the next one. Every segment has its own retransmission deadline,
+ * and the acknowledgments tell which segments arrived, so only the segments that were lost are sent again.
+ * The retransmission timeout follows the round trip times measured by a {@link RetransmissionTimer}.
+ *
+ * The last segment of every burst asks the receiver for an acknowledgment without delay, so the receiver can
+ * acknowledge a whole window at once.
+ *
+ * The sender is a state machine driven by {@link #sendWindow()}, {@link #onAck(int, ByteBuffer)} and
+ * {@link #retransmitExpired(long)}, so both the server and the client drive it from the thread receiving the
+ * acknowledgments, together with the reception of the reply.
+ */
+public class SelectiveRepeatSender {
+
+    /**
+     * Default number of segments that may be sent without being acknowledged.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 32;
+
+    /**
+     * Number of times a segment is sent again before the transfer is given up.
+     */
+    public static final int MAX_RETRANSMISSIONS = 8;
+
+    private final Output output;
+    private final int messageId;
+    private final byte[] message;
+    private final int segmentSize;
+    private final int total;
+    private final int windowSize;
+    private final RetransmissionTimer timer;
+    private final ByteBuffer sendBuffer;
+
+    private final boolean[] acked;
+    private final long[] sentAt;
+    private final long[] deadline;
+    private final int[] transmissions;
+    private int base;
+    private int next;
+    private boolean failed;
+    private long retransmissions;
+
+    /**
+     * Where the datagrams of a sender go: a DatagramSocket on the client, the DatagramChannel of the server.
+     */
+    public interface Output {
+
+        /**
+         * Sends a datagram to the receiver.
+         *
+         * @param datagram The datagram, from the position to the limit of the buffer.
+         * @throws IOException If an I/O error occurs.
+         */
+        void send(ByteBuffer datagram) throws IOException;
+    }
+
+    /**
+     * Creates a sender for a message.
+     *
+     * @param output      Where the segments are sent.
+     * @param messageId   The id of the message, unique among the messages sent to the receiver.
+     * @param message     The bytes of the message.
+     * @param segmentSize The payload of each segment, except the last one.
+     * @param windowSize  The number of segments that may be sent without being acknowledged.
+     * @param timer       The retransmission timer, which may be kept between messages to the same peer.
+     */
+    public SelectiveRepeatSender(Output output, int messageId, byte[] message, int segmentSize, int windowSize,
+                                 RetransmissionTimer timer) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        if (segmentSize <= 0 || segmentSize > UdpProtocol.MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.output = output;
+        this.messageId = messageId;
+        this.message = message;
+        this.segmentSize = segmentSize;
+        this.total = UdpProtocol.segmentCount(message.length, segmentSize);
+        this.windowSize = windowSize;
+        this.timer = timer;
+        this.sendBuffer = ByteBuffer.allocate(UdpProtocol.HEADER_SIZE + segmentSize);
+
+        this.acked = new boolean[total];
+        this.sentAt = new long[total];
+        this.deadline = new long[total];
+        this.transmissions = new int[total];
+    }
+
+    /**
+     * Builds the output sending datagrams to a receiver through a socket.
+     *
+     * @param socket  The socket sending the datagrams.
+     * @param address The address of the receiver.
+     * @param port    The port of the receiver.
+     * @return The output.
+     */
+    public static Output to(DatagramSocket socket, InetAddress address, int port) {
+        return datagram -> socket.send(new DatagramPacket(datagram.array(),
+                datagram.arrayOffset() + datagram.position(), datagram.remaining(), address, port));
+    }
+
+    /**
+     * Sends the segments not sent yet that fit in the window, the last one asking for an acknowledgment.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public synchronized void sendWindow() throws IOException {
+        int end = Math.min(total, base + windowSize);
+        while (next < end) {
+            transmit(next, next == end - 1 ? UdpProtocol.ACK_REQUESTED : 0);
+            next++;
+        }
+    }
+
+    /**
+     * Marks the segments acknowledged by an ACK datagram, measures the round trip time of the most recent segment
+     * it acknowledges that was only sent once, and moves the window.
+     *
+     * @param cumulative The number of segments received in order, the sequence of the ACK.
+     * @param bitmap     The payload of the ACK, a bitmap of the segments received after them.
+     */
+    public synchronized void onAck(int cumulative, ByteBuffer bitmap) {
+        cumulative = Math.max(0, Math.min(cumulative, next));
+
+        long newest = Long.MIN_VALUE;
+        for (int s = base; s < cumulative; s++) {
+            newest = markAcked(s, newest);
+        }
+        for (int b = 0; bitmap.hasRemaining(); b++) {
+            int value = bitmap.get();
+            for (int bit = 0; bit < 8; bit++) {
+                int sequence = cumulative + 1 + b * 8 + bit;
+                if ((value & (1 << bit)) != 0 && sequence < next) {
+                    newest = markAcked(sequence, newest);
+                }
+            }
+        }
+        if (newest != Long.MIN_VALUE) {
+            timer.sample(System.nanoTime() - newest);
+        }
+
+        while (base < total && acked[base]) {
+            base++;
+        }
+    }
+
+    /**
+     * Marks every segment acknowledged, when the receiver answered the message, which it only does once the whole
+     * message has arrived. The round trip time is measured as for an acknowledgment; it includes the time taken to
+     * answer, which only makes the retransmission timeout more conservative.
+     */
+    public synchronized void acknowledgeAll() {
+        long newest = Long.MIN_VALUE;
+        for (int s = base; s < next; s++) {
+            newest = markAcked(s, newest);
+        }
+        if (newest != Long.MIN_VALUE) {
+            timer.sample(System.nanoTime() - newest);
+        }
+        Arrays.fill(acked, true);
+        base = total;
+    }
+
+    /**
+     * Sends again the segments whose deadline has passed, or gives the message up if one of them was already sent
+     * {@link #MAX_RETRANSMISSIONS} times.
+     *
+     * @param now The current time, from System.nanoTime.
+     * @throws IOException If an I/O error occurs.
+     */
+    public synchronized void retransmitExpired(long now) throws IOException {
+        boolean expired = false;
+        for (int s = base; s < next; s++) {
+            if (!acked[s] && deadline[s] - now <= 0) {
+                if (transmissions[s] > MAX_RETRANSMISSIONS) {
+                    failed = true;
+                    return;
+                }
+                if (!expired) {
+                    timer.backOff();
+                    expired = true;
+                }
+                transmit(s, UdpProtocol.ACK_REQUESTED);
+                retransmissions++;
+            }
+        }
+    }
+
+    /**
+     * @return The earliest retransmission deadline of the segments not acknowledged yet, from System.nanoTime.
+     */
+    public synchronized long nextDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (int s = base; s < next; s++) {
+            if (!acked[s]) {
+                earliest = Math.min(earliest, deadline[s]);
+            }
+        }
+        return earliest;
+    }
+
+    private void transmit(int sequence, byte flags) throws IOException {
+        int offset = sequence * segmentSize;
+        int size = Math.min(segmentSize, message.length - offset);
+
+        sendBuffer.clear();
+        UdpProtocol.writeHeader(sendBuffer, UdpProtocol.DATA, flags, messageId, sequence, total, segmentSize);
+        sendBuffer.put(message, offset, size).flip();
+        output.send(sendBuffer);
+
+        sentAt[sequence] = System.nanoTime();
+        deadline[sequence] = sentAt[sequence] + timer.getRtoNanos();
+        transmissions[sequence]++;
+    }
+
+    private long markAcked(int sequence, long newest) {
+        if (acked[sequence]) {
+            return newest;
+        }
+        acked[sequence] = true;
+        if (transmissions[sequence] == 1 && sentAt[sequence] > newest) {
+            return sentAt[sequence];
+        }
+        return newest;
+    }
+
+    /**
+     * @return True once every segment has been acknowledged.
+     */
+    public synchronized boolean isComplete() {
+        return base == total;
+    }
+
+    /**
+     * @return True if the message was given up after too many retransmissions.
+     */
+    public synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * @return True if the sender has nothing left to do, because the message was acknowledged or given up.
+     */
+    public synchronized boolean isDone() {
+        return base == total || failed;
+    }
+
+    /**
+     * @return The number of segments sent again by this sender.
+     */
+    public synchronized long getRetransmissions() {
+        return retransmissions;
+    }
+}
@@ -0,0 +1,452 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The runtime metrics of a server: the requests, bytes and keyword instances it handled, the time its requests
+ * spent being parsed, matched and sent, the segments of UDP replies sent again, the UDP requests given up before
+ * they were complete, the segments of UDP requests dropped for lack of memory, the UDP requests refused as too many
+ * were being received, its open connections and sessions, and the hits of the {@link ResponseCache}.
+ *
+ * Every counter is a LongAdder and every time a {@link LatencyHistogram}, so the threads serving the clients
+ * update them without locking or waiting for each other. Nothing is logged per request.
+ *
+ * The metrics are read through JMX, under the name
+ * {@code pt.ipp.isep.dei.examples.basic.domain:type=ServerMetrics,name=<server name>} such as {@code name=tcp},
+ * or as plain text from {@code http://localhost:<port>/metrics}, in the Prometheus format, once {@link #publish}
+ * has been called.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private final String serverName;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder reassemblyTimeouts = new LongAdder();
+    private final LongAdder droppedSegments = new LongAdder();
+    private final LongAdder rejectedSessions = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder activeSessions = new LongAdder();
+
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram matchTime = new LatencyHistogram();
+    private final LatencyHistogram sendTime = new LatencyHistogram();
+
+    // the request rate is measured between readings at least a second apart
+    private long rateSampleTime = System.nanoTime();
+    private long rateSampleRequests;
+    private double requestsPerSecond;
+
+    private ObjectName objectName;
+    private HttpServer endpoint;
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param serverName The name of the server in the JMX name and the scraped metrics, such as "tcp" or "udp".
+     */
+    public ServerMetrics(String serverName) {
+        this.serverName = serverName;
+    }
+
+    /**
+     * Counts a request, or each request of a batch, and the keyword instances hidden in them.
+     *
+     * @param count      The number of requests.
+     * @param instances  The number of keyword instances hidden.
+     * @param matchNanos The time spent hiding the keywords.
+     */
+    public void requestsMatched(int count, long instances, long matchNanos) {
+        requests.add(count);
+        matches.add(instances);
+        matchTime.record(matchNanos);
+    }
+
+    /**
+     * @param instanceCounters The instance counters of a request, one per keyword.
+     * @return The number of keyword instances of the request.
+     */
+    public static long sum(int[] instanceCounters) {
+        long sum = 0;
+        for (int instanceCounter : instanceCounters) {
+            sum += instanceCounter;
+        }
+        return sum;
+    }
+
+    /**
+     * @param results The results of the requests of a batch.
+     * @return The number of keyword instances of the batch.
+     */
+    public static long sum(List<AnonymizationResult> results) {
+        long sum = 0;
+        for (AnonymizationResult result : results) {
+            sum += sum(result.getInstanceCounters());
+        }
+        return sum;
+    }
+
+    /**
+     * Records the time spent reading and decoding a request once it started to arrive.
+     *
+     * @param nanos The time in nanoseconds.
+     */
+    public void parsed(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    /**
+     * Records the time spent encoding and sending replies.
+     *
+     * @param nanos The time in nanoseconds.
+     */
+    public void sent(long nanos) {
+        sendTime.record(nanos);
+    }
+
+    /**
+     * @param bytes The number of bytes received from a client.
+     */
+    public void bytesReceived(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param bytes The number of bytes sent to a client.
+     */
+    public void bytesSent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * @param segments The number of segments of a reply that were sent again.
+     */
+    public void segmentsRetransmitted(long segments) {
+        retransmissions.add(segments);
+    }
+
+    /**
+     * Counts a request discarded before all of its segments arrived.
+     */
+    public void reassemblyTimedOut() {
+        reassemblyTimeouts.increment();
+    }
+
+    /**
+     * Counts a segment of a request dropped because the buffers of the requests being received were full.
+     */
+    public void segmentDropped() {
+        droppedSegments.increment();
+    }
+
+    /**
+     * Counts a request refused because its client, or all the clients, had too many requests being received.
+     */
+    public void sessionRejected() {
+        rejectedSessions.increment();
+    }
+
+    /**
+     * Counts a connection as open until {@link #connectionClosed()}.
+     */
+    public void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Counts a session as kept until {@link #sessionClosed()}.
+     */
+    public void sessionOpened() {
+        activeSessions.increment();
+    }
+
+    public void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    /**
+     * Wraps the input stream of a connection so the bytes read from it are counted.
+     *
+     * @param in The stream of the socket.
+     * @return The counting stream.
+     */
+    public InputStream countingInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wraps the output stream of a connection so the bytes written to it are counted.
+     *
+     * @param out The stream of the socket.
+     * @return The counting stream.
+     */
+    public OutputStream countingOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public synchronized double getRequestsPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateSampleTime >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = requests.sum();
+            requestsPerSecond = (count - rateSampleRequests) * 1e9 / (now - rateSampleTime);
+            rateSampleRequests = count;
+            rateSampleTime = now;
+        }
+        return requestsPerSecond;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMatches() {
+        return matches.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getReassemblyTimeouts() {
+        return reassemblyTimeouts.sum();
+    }
+
+    @Override
+    public long getDroppedSegments() {
+        return droppedSegments.sum();
+    }
+
+    @Override
+    public long getRejectedSessions() {
+        return rejectedSessions.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public String getParseTime() {
+        return parseTime.summary();
+    }
+
+    @Override
+    public String getMatchTime() {
+        return matchTime.summary();
+    }
+
+    @Override
+    public String getSendTime() {
+        return sendTime.summary();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        ResponseCache cache = ResponseCache.shared();
+        return cache == null ? 0 : cache.getHitRatio();
+    }
+
+    @Override
+    public String getResponseCache() {
+        ResponseCache cache = ResponseCache.shared();
+        return cache == null ? "disabled" : cache.toString();
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format.
+     *
+     * @return The metrics, one per line.
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder(2048);
+        counter(text, "requests_total", "Requests handled, counting each request of a batch.", getRequests());
+        counter(text, "bytes_in_total", "Bytes received from clients.", getBytesIn());
+        counter(text, "bytes_out_total", "Bytes sent to clients.", getBytesOut());
+        counter(text, "matches_total", "Keyword instances hidden.", getMatches());
+        counter(text, "retransmissions_total", "Segments of UDP replies sent again.", getRetransmissions());
+        counter(text, "reassembly_timeouts_total", "UDP requests discarded before all of their segments arrived.",
+                getReassemblyTimeouts());
+        counter(text, "dropped_segments_total", "Segments of UDP requests dropped as the reassembly buffers were full.",
+                getDroppedSegments());
+        counter(text, "rejected_sessions_total", "UDP requests refused as too many were being received.",
+                getRejectedSessions());
+        gauge(text, "active_connections", "Open TCP connections.", getActiveConnections());
+        gauge(text, "active_sessions", "UDP sessions kept by the server.", getActiveSessions());
+        summary(text, "parse_seconds", "Time reading and decoding a request once it started to arrive.", parseTime);
+        summary(text, "match_seconds", "Time hiding the keywords of a request or batch.", matchTime);
+        summary(text, "send_seconds", "Time encoding and sending replies.", sendTime);
+
+        ResponseCache cache = ResponseCache.shared();
+        if (cache != null) {
+            counter(text, "cache_hits_total", "Requests answered from the response cache.", cache.getHits());
+            counter(text, "cache_misses_total", "Requests not found in the response cache.", cache.getMisses());
+            counter(text, "cache_evictions_total", "Results evicted to make room in the response cache.",
+                    cache.getEvictions());
+            counter(text, "cache_expirations_total", "Results of the response cache that expired.",
+                    cache.getExpirations());
+            gauge(text, "cache_bytes", "Estimated bytes taken by the response cache.", cache.getBytes());
+        }
+        return text.toString();
+    }
+
+    private void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append("anonymizer_").append(name).append("{server=\"").append(serverName).append("\"} ")
+                .append(value).append('\n');
+    }
+
+    private void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append("anonymizer_").append(name).append("{server=\"").append(serverName).append("\"} ")
+                .append(value).append('\n');
+    }
+
+    private void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        header(text, name, help, "summary");
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            text.append("anonymizer_").append(name).append("{server=\"").append(serverName)
+                    .append("\",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+        }
+        text.append("anonymizer_").append(name).append("_sum{server=\"").append(serverName).append("\"} ")
+                .append(seconds(histogram.getSum())).append('\n');
+        text.append("anonymizer_").append(name).append("_count{server=\"").append(serverName).append("\"} ")
+                .append(histogram.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP anonymizer_").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE anonymizer_").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and, if a port is given, serves them as plain text on
+     * the loopback interface, so they can be scraped on the host of the server but not from the network.
+     *
+     * @param httpPort The port of the scrape endpoint, or 0 for none.
+     */
+    public synchronized void publish(int httpPort) {
+        try {
+            objectName = new ObjectName(getClass().getPackage().getName() + ":type=ServerMetrics,name=" + serverName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.err.println("Metrics exception: " + e.getMessage());
+            objectName = null;
+        }
+
+        if (httpPort > 0) {
+            try {
+                endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+                endpoint.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                endpoint.start();
+                System.out.println("Metrics at http://localhost:" + httpPort + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Metrics exception: " + e.getMessage());
+                endpoint = null;
+            }
+        }
+    }
+
+    /**
+     * Unregisters the metrics from JMX and stops the scrape endpoint, if they were published.
+     */
+    public synchronized void unpublish() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.err.println("Metrics exception: " + e.getMessage());
+            }
+            objectName = null;
+        }
+        if (endpoint != null) {
+            endpoint.stop(0);
+            endpoint = null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+/**
+ * The management interface of {@link ServerMetrics}, as seen through JMX. The times are summaries in milliseconds
+ * since the server started.
+ */
+public interface ServerMetricsMBean {
+
+    long getRequests();
+
+    double getRequestsPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMatches();
+
+    long getRetransmissions();
+
+    long getReassemblyTimeouts();
+
+    long getDroppedSegments();
+
+    long getRejectedSessions();
+
+    long getActiveConnections();
+
+    long getActiveSessions();
+
+    String getParseTime();
+
+    String getMatchTime();
+
+    String getSendTime();
+
+    double getCacheHitRatio();
+
+    String getResponseCache();
+}
@@ -0,0 +1,184 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Hides a keyword, or a {@link KeywordSet}, in a string that arrives in chunks, writing the hidden string as it goes.
+ * Only the last characters that could still be part of a keyword are held back, so the memory used does not depend
+ * on the length of the string, and a keyword split between two chunks is still found.
+ *
+ * The keywords are hidden and counted as by {@link AnonymizationEngine}, lower-casing the string one character at
+ * a time. For the few characters whose lower-case form depends on their neighbours or on the locale ('İ', a final
+ * 'Σ', surrogate pairs and the Turkish, Azeri and Lithuanian locales), this may count differently from the regular
+ * expressions the engine falls back to for them. Empty keywords are ignored.
+ */
+public class StreamingAnonymizer {
+
+    private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+    private final AhoCorasickAutomaton automaton;
+    private final int window;
+    private final char[] held;
+    private final boolean[] heldIsWord;
+    private final char[] outputBuffer = new char[OUTPUT_BUFFER_SIZE];
+    private int outputLength;
+
+    private final long[] maskFrom;
+    private final long[] countFrom;
+    private final int[] instanceCounters;
+    private final int[] candidates;
+    private int candidateCount;
+
+    private long position;
+    private long written;
+    private int maskState;
+    private int countState;
+    private boolean baseIsLetterOrDigit;
+
+    /**
+     * Creates an anonymizer for a stream.
+     *
+     * @param keyWord A single keyword, or a keyword set built by {@link KeywordSet#encode(java.util.List)}.
+     */
+    public StreamingAnonymizer(String keyWord) {
+        this.automaton = AhoCorasickAutomaton.forKeywordField(keyWord);
+        this.window = Math.max(1, automaton.maxKeywordLength());
+        this.held = new char[window];
+        this.heldIsWord = new boolean[window + 1];
+        this.maskFrom = new long[automaton.keywordCount()];
+        this.countFrom = new long[automaton.keywordCount()];
+        this.instanceCounters = new int[automaton.keywordCount()];
+        this.candidates = new int[automaton.keywordCount()];
+    }
+
+    /**
+     * Hides the keywords in the next chunk of the string. The characters that can no longer be part of a keyword
+     * are written to the output; the others are kept until the next chunk or {@link #finish(Writer)}.
+     *
+     * @param chars  The characters of the chunk.
+     * @param offset The index of the first character of the chunk.
+     * @param length The number of characters of the chunk.
+     * @param out    The writer receiving the hidden string.
+     * @throws IOException If the writer fails.
+     */
+    public void write(char[] chars, int offset, int length, Writer out) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            accept(chars[i], out);
+        }
+        flushOutput(out);
+    }
+
+    /**
+     * Ends the string: counts the keywords that end with it and writes the characters still held back.
+     *
+     * @param out The writer receiving the hidden string.
+     * @return The number of instances of each keyword, in the order of the keywords.
+     * @throws IOException If the writer fails.
+     */
+    public int[] finish(Writer out) throws IOException {
+        // the end of the string is not a word character
+        resolveCandidates(false);
+        while (written < position) {
+            emit(held[(int) (written % window)], out);
+        }
+        flushOutput(out);
+        return instanceCounters.clone();
+    }
+
+    private void accept(char c, Writer out) throws IOException {
+        long i = position;
+        char lower = Character.toLowerCase(c);
+
+        boolean isWord;
+        if (Character.getType(lower) == Character.NON_SPACING_MARK) {
+            isWord = baseIsLetterOrDigit;
+        } else {
+            isWord = lower == '_' || Character.isLetterOrDigit(lower);
+            baseIsLetterOrDigit = Character.isLetterOrDigit(lower);
+        }
+
+        // the keywords that ended with the previous character are counted if this one makes a word boundary
+        resolveCandidates(isWord);
+
+        held[(int) (i % window)] = c;
+        heldIsWord[(int) (i % (window + 1))] = isWord;
+        position++;
+
+        maskState = automaton.next(maskState, c);
+        for (int k : automaton.outputs(maskState)) {
+            long start = i - automaton.keywordLength(k) + 1;
+            if (start >= maskFrom[k]) {
+                maskFrom[k] = i + 1;
+                for (long x = start; x <= i; x++) {
+                    held[(int) (x % window)] = 'X';
+                }
+            }
+        }
+
+        countState = automaton.next(countState, lower);
+        for (int k : automaton.outputs(countState)) {
+            long start = i - automaton.keywordLength(k) + 1;
+            if (start >= countFrom[k] && isWord(start - 1) != isWord(start)) {
+                candidates[candidateCount++] = k;
+            }
+        }
+
+        // a character is final once no keyword still to come can start on it
+        if (position - written >= window) {
+            emit(held[(int) (written % window)], out);
+        }
+    }
+
+    /**
+     * Counts the keywords ending at the last character whose right side is a word boundary.
+     *
+     * @param nextIsWord True if the character after the keywords is a word character.
+     */
+    private void resolveCandidates(boolean nextIsWord) {
+        if (candidateCount == 0) {
+            return;
+        }
+        boolean lastIsWord = isWord(position - 1);
+        if (lastIsWord != nextIsWord) {
+            for (int c = 0; c < candidateCount; c++) {
+                int k = candidates[c];
+                instanceCounters[k]++;
+                countFrom[k] = position;
+            }
+        }
+        candidateCount = 0;
+    }
+
+    private boolean isWord(long index) {
+        return index >= 0 && heldIsWord[(int) (index % (window + 1))];
+    }
+
+    private void emit(char c, Writer out) throws IOException {
+        written++;
+        outputBuffer[outputLength++] = c;
+        if (outputLength == outputBuffer.length) {
+            flushOutput(out);
+        }
+    }
+
+    private void flushOutput(Writer out) throws IOException {
+        if (outputLength > 0) {
+            out.write(outputBuffer, 0, outputLength);
+            outputLength = 0;
+        }
+    }
+
+    /**
+     * @return The number of characters of the string received so far.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamingAnonymizer[position=" + position + ", instanceCounters=" + Arrays.toString(instanceCounters) + "]";
+    }
+}
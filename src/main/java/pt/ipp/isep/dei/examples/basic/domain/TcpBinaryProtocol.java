@@ -0,0 +1,337 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The binary framing of the TCP servers, which a client chooses instead of the line protocol by starting the
+ * connection with {@link #PREAMBLE} and the version it speaks. The line protocol reserves that byte: the servers
+ * close a connection on which a request line starts with it, and {@link client_java_tcp} refuses to send such a
+ * string other than in binary frames. The server answers with the version it accepts, or with 0 before closing the
+ * connection if it does not speak the client's version.
+ *
+ * Every frame starts with its type and a byte of flags, which version 1 requires to be 0:
+ * <pre>
+ * request: [REQUEST][flags] field(string) field(keyword)
+ * batch:   [BATCH][flags] count:int32 (field(string) field(keyword)) * count
+ * reply:   [REPLY][flags] field(masked string) count:int32 (instance counter:int32) * count
+ * </pre>
+ * A field is its length in bytes as an int32 followed by the field in UTF-8, so strings may hold any character,
+ * line terminators included, and are decoded once. Integers are big-endian. The fields of a request or batch frame
+ * may hold at most {@link #MAX_FRAME_LENGTH} bytes in all, which bounds what a server holds for a frame being
+ * received; a frame announcing more is refused as soon as its lengths are read, and the connection closed.
+ * The blocking server reads a field into a buffer of at most {@link #FIELD_CHUNK_SIZE} bytes, doubled as it fills up,
+ * while the non-blocking one keeps the bytes of a frame until it is complete.
+ * The replies of a connection come back in the order of its requests, one per request of a batch.
+ */
+public final class TcpBinaryProtocol {
+
+    /**
+     * First byte of a connection using the binary framing.
+     */
+    public static final byte PREAMBLE = 0;
+
+    /**
+     * The version of the framing described here.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Type of a frame carrying one string and its keyword.
+     */
+    public static final byte REQUEST = 1;
+
+    /**
+     * Type of a frame carrying a number of strings and keywords, answered by as many replies.
+     */
+    public static final byte BATCH = 2;
+
+    /**
+     * Type of a frame carrying a masked string and its instance counters.
+     */
+    public static final byte REPLY = 3;
+
+    /**
+     * Maximum length in bytes of a field.
+     */
+    public static final int MAX_FIELD_LENGTH = 1 << 28;
+
+    /**
+     * Maximum length in bytes of the fields of a request or batch frame together.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 28;
+
+    /**
+     * Size of the buffer a field is first read into, which holds most fields whole.
+     */
+    public static final int FIELD_CHUNK_SIZE = 64 * 1024;
+
+    private TcpBinaryProtocol() {
+    }
+
+    /**
+     * Writes the start of a connection, asking for the binary framing.
+     *
+     * @param out The stream to the server.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writePreamble(DataOutputStream out) throws IOException {
+        out.writeByte(PREAMBLE);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * @param out     The stream to the server.
+     * @param request The string and keyword to be sent.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeRequest(DataOutputStream out, AnonymizationRequest request) throws IOException {
+        out.writeByte(REQUEST);
+        out.writeByte(0);
+        writeField(out, request.getStrg());
+        writeField(out, request.getKeyWord());
+    }
+
+    /**
+     * @param out      The stream to the server.
+     * @param requests The strings and keywords to be sent as one batch.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeBatch(DataOutputStream out, List<AnonymizationRequest> requests) throws IOException {
+        out.writeByte(BATCH);
+        out.writeByte(0);
+        out.writeInt(requests.size());
+        for (AnonymizationRequest request : requests) {
+            writeField(out, request.getStrg());
+            writeField(out, request.getKeyWord());
+        }
+    }
+
+    /**
+     * @param out    The stream to the client.
+     * @param result The masked string and instance counters to be sent.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeReply(DataOutputStream out, AnonymizationResult result) throws IOException {
+        writeReply(out, result.getMaskedStrg(), result.getInstanceCounters());
+    }
+
+    /**
+     * @param out              The stream to the client.
+     * @param maskedStrg       The masked string.
+     * @param instanceCounters The instance counters, one per keyword.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeReply(DataOutputStream out, String maskedStrg, int[] instanceCounters) throws IOException {
+        out.writeByte(REPLY);
+        out.writeByte(0);
+        writeField(out, maskedStrg);
+        out.writeInt(instanceCounters.length);
+        for (int instanceCounter : instanceCounters) {
+            out.writeInt(instanceCounter);
+        }
+    }
+
+    private static void writeField(DataOutputStream out, String field) throws IOException {
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads the flags of a frame whose type has been read, which must be 0 in this version.
+     *
+     * @param in The stream from the peer.
+     * @throws IOException If an I/O error occurs or a flag is set.
+     */
+    public static void readFlags(DataInputStream in) throws IOException {
+        checkFlags(in.readByte());
+    }
+
+    /**
+     * Reads the rest of a request frame whose type has been read.
+     *
+     * @param in The stream from the client.
+     * @return The string and keyword.
+     * @throws IOException If an I/O error occurs or the frame is invalid.
+     */
+    public static AnonymizationRequest readRequest(DataInputStream in) throws IOException {
+        readFlags(in);
+        byte[] strg = readField(in, MAX_FRAME_LENGTH);
+        byte[] keyWord = readField(in, MAX_FRAME_LENGTH - strg.length);
+        return new AnonymizationRequest(new String(strg, StandardCharsets.UTF_8),
+                new String(keyWord, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the rest of a batch frame whose type has been read.
+     *
+     * @param in The stream from the client.
+     * @return The strings and keywords, in their order.
+     * @throws IOException If an I/O error occurs or the frame is invalid.
+     */
+    public static List<AnonymizationRequest> readBatch(DataInputStream in) throws IOException {
+        readFlags(in);
+        int count = checkBatchSize(in.readInt());
+        List<AnonymizationRequest> requests = new ArrayList<>(Math.min(count, 1024));
+        int remaining = MAX_FRAME_LENGTH;
+        for (int i = 0; i < count; i++) {
+            byte[] strg = readField(in, remaining);
+            remaining -= strg.length;
+            byte[] keyWord = readField(in, remaining);
+            remaining -= keyWord.length;
+            requests.add(new AnonymizationRequest(new String(strg, StandardCharsets.UTF_8),
+                    new String(keyWord, StandardCharsets.UTF_8)));
+        }
+        return requests;
+    }
+
+    /**
+     * Reads a reply frame.
+     *
+     * @param in The stream from the server.
+     * @return The masked string and instance counters.
+     * @throws IOException If an I/O error occurs or the frame is not a valid reply.
+     */
+    public static AnonymizationResult readReply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type != REPLY) {
+            throw new IOException("Invalid frame type: " + type);
+        }
+        readFlags(in);
+        String maskedStrg = new String(readField(in, MAX_FIELD_LENGTH), StandardCharsets.UTF_8);
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FIELD_LENGTH / 4) {
+            throw new IOException("Invalid number of instance counters: " + count);
+        }
+        int[] instanceCounters = new int[count];
+        for (int i = 0; i < count; i++) {
+            instanceCounters[i] = in.readInt();
+        }
+        return new AnonymizationResult(maskedStrg, instanceCounters);
+    }
+
+    private static byte[] readField(DataInputStream in, int remaining) throws IOException {
+        int length = checkFieldLength(in.readInt(), remaining);
+        byte[] bytes = new byte[Math.min(length, FIELD_CHUNK_SIZE)];
+        int read = 0;
+        while (read < length) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            int count = in.read(bytes, read, bytes.length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Finds the end of the request or batch frame starting at the position of a buffer, without consuming it.
+     *
+     * @param buffer The bytes received, from the position to the limit.
+     * @return The length of the frame, or -1 if it has not been received completely.
+     * @throws IOException If the frame is invalid, or its fields hold more than {@link #MAX_FRAME_LENGTH} bytes.
+     */
+    public static int frameLength(ByteBuffer buffer) throws IOException {
+        ByteBuffer frame = buffer.duplicate();
+        try {
+            byte type = frame.get();
+            checkFlags(frame.get());
+            int fields;
+            if (type == REQUEST) {
+                fields = 2;
+            } else if (type == BATCH) {
+                fields = 2 * checkBatchSize(frame.getInt());
+            } else {
+                throw new IOException("Invalid frame type: " + type);
+            }
+            int remaining = MAX_FRAME_LENGTH;
+            for (int i = 0; i < fields; i++) {
+                int length = checkFieldLength(frame.getInt(), remaining);
+                remaining -= length;
+                if (frame.remaining() < length) {
+                    return -1;
+                }
+                frame.position(frame.position() + length);
+            }
+        } catch (BufferUnderflowException e) {
+            return -1;
+        }
+        return frame.position() - buffer.position();
+    }
+
+    /**
+     * Decodes a complete request or batch frame, as found by {@link #frameLength(ByteBuffer)}.
+     *
+     * @param buffer The frame, from the position of the buffer, which is moved past it.
+     * @return The string and keyword of each request, a single one unless the frame is a batch.
+     */
+    public static List<AnonymizationRequest> decodeRequests(ByteBuffer buffer) {
+        byte type = buffer.get();
+        buffer.get();
+        int count = type == BATCH ? buffer.getInt() : 1;
+        List<AnonymizationRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String strg = decodeField(buffer);
+            requests.add(new AnonymizationRequest(strg, decodeField(buffer)));
+        }
+        return requests;
+    }
+
+    /**
+     * @param buffer The first byte of a frame, at the position of the buffer.
+     * @return Whether the frame is a batch.
+     */
+    public static boolean isBatch(ByteBuffer buffer) {
+        return buffer.get(buffer.position()) == BATCH;
+    }
+
+    private static String decodeField(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String field;
+        if (buffer.hasArray()) {
+            field = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.duplicate().get(bytes);
+            field = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return field;
+    }
+
+    private static void checkFlags(byte flags) throws IOException {
+        if (flags != 0) {
+            throw new IOException("Unsupported flags: " + flags);
+        }
+    }
+
+    private static int checkFieldLength(int length, int remaining) throws IOException {
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IOException("Invalid field length: " + length);
+        }
+        if (length > remaining) {
+            throw new IOException("Frame longer than " + MAX_FRAME_LENGTH + " bytes");
+        }
+        return length;
+    }
+
+    private static int checkBatchSize(int count) throws IOException {
+        if (count < 0 || count > server_java_tcp.MAX_BATCH_SIZE) {
+            throw new IOException("Invalid batch size: " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,589 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking version of the TCP server, speaking the same line protocol as {@link server_java_tcp}, or the
+ * binary framing of {@link TcpBinaryProtocol} when the client asks for it.
+ * The client sends the string and the keyword as two lines, and the server answers with the string with the
+ * hidden keyword and the instance counter, also as two lines. A connection may carry any number of requests,
+ * which are answered in order until the client closes it.
+ * Streaming requests ({@link server_java_tcp#STREAM_MARKER}) are accepted, but their string is hidden once its whole
+ * line has arrived; only the blocking server sends it back as it arrives. The requests of a batch
+ * ({@link server_java_tcp#BATCH_MARKER}) are hidden in parallel on the common fork-join pool once they have all arrived.
+ *
+ * Connections are accepted on the calling thread and spread over a fixed number of event loops. Each event loop
+ * owns a Selector and reads, frames and answers all of its connections, so mostly idle clients cost no threads.
+ */
+public class TcpSelectorServer {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private int nextEventLoop;
+    private final ServerMetrics metrics = new ServerMetrics("tcp");
+
+    /**
+     * Binds the server to the specified port and starts the event loops.
+     *
+     * @param port            The port bound to the server at localhost.
+     * @param selectorThreads The number of event loops, each one running on its own thread.
+     * @param backlog         The maximum length of the queue of incoming connections not yet accepted.
+     */
+    public TcpSelectorServer(int port, int selectorThreads, int backlog) {
+        serverChannel = null;
+        eventLoops = new EventLoop[selectorThreads];
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+
+            for (int i = 0; i < selectorThreads; i++) {
+                eventLoops[i] = new EventLoop(Selector.open(), metrics);
+                Thread thread = new Thread(eventLoops[i], "tcp-selector-" + (i + 1));
+                thread.start();
+            }
+            System.out.println("Server listening on port: " + port + " (" + selectorThreads + " selector threads)");
+
+        } catch (IOException e) {
+            System.err.println("Server exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for client connections and hands each one to an event loop, until the server is shut down.
+     */
+    public void waitConnections() {
+
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+
+                eventLoops[nextEventLoop].register(clientChannel);
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Server exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return The metrics of the server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops accepting connections and closes the event loops together with their connections.
+     */
+    public void shutdown() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Server exception: " + e.getMessage());
+        }
+
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+        metrics.unpublish();
+        System.out.println("Server stopped");
+    }
+
+    /**
+     * A selector thread serving a set of connections. The read and write buffers are shared by all of its
+     * connections; a connection only keeps its own bytes while a line or a reply is incomplete.
+     */
+    private static class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+        private final CharsetEncoder utf8Encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ServerMetrics metrics;
+        private final AsyncLogger log = AsyncLogger.getDefault();
+        private volatile boolean running = true;
+
+        EventLoop(Selector selector, ServerMetrics metrics) {
+            this.selector = selector;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Queues a newly accepted channel to be registered by the event loop thread.
+         *
+         * @param channel The channel connected to the client.
+         */
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    registerPendingChannels();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Server exception: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+            closeAll();
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection());
+                    metrics.connectionOpened();
+                    log.debug("connection.open", "client", channel.socket().getRemoteSocketAddress(), null, null);
+                } catch (IOException e) {
+                    log.warn("connection.error", "client", channel.socket().getRemoteSocketAddress(), "error", e);
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    writePending(key, channel, connection);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(key, channel, connection);
+                }
+            } catch (IOException e) {
+                // the client went away in the middle of a request, or sent an invalid batch or line
+                log.warn("connection.error", "client", channel.socket().getRemoteSocketAddress(), "error", e);
+                close(key);
+            }
+        }
+
+        /**
+         * Reads what is available on the channel and frames it into lines, or into binary frames. Every request that
+         * is complete gets its reply, and the replies of all the requests read together are written at once.
+         */
+        private void read(SelectionKey key, SocketChannel channel, Connection connection) throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close(key);
+                return;
+            }
+            metrics.bytesReceived(read);
+            readBuffer.flip();
+            writeBuffer.clear();
+            long sendNanos;
+            if (connection.negotiating && readBuffer.hasRemaining()) {
+                // the first byte of a connection tells the binary framing from the line protocol
+                connection.negotiating = false;
+                connection.binary = readBuffer.get(readBuffer.position()) == TcpBinaryProtocol.PREAMBLE;
+            }
+            if (connection.binary) {
+                sendNanos = answerFrames(channel, connection);
+            } else {
+                sendNanos = answerLines(connection);
+            }
+
+            if (writeBuffer.position() > 0) {
+                long start = System.nanoTime();
+                writeReplies(key, channel, connection);
+                metrics.sent(sendNanos + System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Frames the bytes read into lines and appends the reply of every string and keyword pair that is complete.
+         *
+         * @return The time spent encoding the replies, in nanoseconds.
+         */
+        private long answerLines(Connection connection) throws IOException {
+            long sendNanos = 0;
+            while (readBuffer.hasRemaining()) {
+                long start = System.nanoTime();
+                String line = connection.frameLine(readBuffer);
+                connection.parseNanos += System.nanoTime() - start;
+                if (line == null) {
+                    break;
+                }
+                if (connection.batch != null) {
+                    connection.batchBytes += line.length();
+                    if (connection.batchBytes > server_java_tcp.MAX_LINE_LENGTH) {
+                        throw new IOException("Batch longer than " + server_java_tcp.MAX_LINE_LENGTH + " bytes");
+                    }
+                }
+                String keyWord;
+                if (connection.streamKeyWord != null) {
+                    // the keyword of a streaming request comes before its string
+                    connection.strg = line;
+                    keyWord = connection.streamKeyWord;
+                    connection.streamKeyWord = null;
+                } else if (connection.strg == null) {
+                    if (connection.batch != null || line.isEmpty()) {
+                        // the strings of a batch are taken as they are
+                        connection.strg = line;
+                    } else if (line.charAt(0) == server_java_tcp.STREAM_MARKER) {
+                        connection.streamKeyWord = line.substring(1);
+                    } else if (line.charAt(0) == server_java_tcp.BATCH_MARKER) {
+                        connection.batchSize = server_java_tcp.parseBatchSize(line);
+                        connection.batch = new ArrayList<>(Math.min(connection.batchSize, 1024));
+                        sendNanos += appendBatchIfComplete(connection);
+                    } else {
+                        server_java_tcp.checkLine(line);
+                        connection.strg = line;
+                    }
+                    continue;
+                } else {
+                    keyWord = line;
+                }
+
+                if (connection.batch != null) {
+                    connection.batch.add(new AnonymizationRequest(connection.strg, keyWord));
+                    connection.strg = null;
+                    sendNanos += appendBatchIfComplete(connection);
+                    continue;
+                }
+
+                metrics.parsed(connection.parseNanos);
+                connection.parseNanos = 0;
+
+                // replace keyword with 'X' repeated and count its instances
+                long parsed = System.nanoTime();
+                AnonymizationEngine engine = AnonymizationEngine.forCurrentThread();
+                int instances = engine.process(connection.strg, keyWord);
+                connection.strg = null;
+                long matched = System.nanoTime();
+                metrics.requestsMatched(1, instances, matched - parsed);
+
+                appendLine(CharBuffer.wrap(engine.getOutput(), 0, engine.getOutputLength()));
+                appendLine(AnonymizationResult.formatInstanceCounters(engine.getInstanceCounters()));
+                sendNanos += System.nanoTime() - matched;
+            }
+            return sendNanos;
+        }
+
+        /**
+         * Accumulates the bytes read on a connection using the binary framing, answers its version once the preamble
+         * has arrived, and appends the replies of every request and batch frame that is complete.
+         *
+         * @return The time spent encoding the replies, in nanoseconds.
+         */
+        private long answerFrames(SocketChannel channel, Connection connection) throws IOException {
+            ByteBuffer frames = connection.appendFrameBytes(readBuffer);
+            frames.flip();
+            long sendNanos = 0;
+            try {
+                if (!connection.versionAccepted) {
+                    if (frames.remaining() < 2) {
+                        return 0;
+                    }
+                    frames.get();
+                    byte version = frames.get();
+                    if (version != TcpBinaryProtocol.VERSION) {
+                        writeBuffer.put((byte) 0).flip();
+                        channel.write(writeBuffer);
+                        throw new IOException("Unsupported binary protocol version: " + version);
+                    }
+                    writeBuffer.put(TcpBinaryProtocol.VERSION);
+                    connection.versionAccepted = true;
+                }
+
+                while (frames.hasRemaining()) {
+                    long start = System.nanoTime();
+                    int length = TcpBinaryProtocol.frameLength(frames);
+                    if (length < 0) {
+                        connection.parseNanos += System.nanoTime() - start;
+                        break;
+                    }
+                    boolean batch = TcpBinaryProtocol.isBatch(frames);
+                    List<AnonymizationRequest> requests = TcpBinaryProtocol.decodeRequests(frames);
+                    long parsed = System.nanoTime();
+                    metrics.parsed(connection.parseNanos + parsed - start);
+                    connection.parseNanos = 0;
+
+                    long matched;
+                    if (batch) {
+                        List<AnonymizationResult> results = BatchAnonymizer.anonymizeAll(requests);
+                        matched = System.nanoTime();
+                        metrics.requestsMatched(requests.size(), ServerMetrics.sum(results), matched - parsed);
+                        for (AnonymizationResult result : results) {
+                            char[] masked = result.getMaskedStrg().toCharArray();
+                            appendFrameReply(masked, masked.length, result.getInstanceCounters());
+                        }
+                    } else {
+                        AnonymizationRequest request = requests.get(0);
+                        AnonymizationEngine engine = AnonymizationEngine.forCurrentThread();
+                        int instances = engine.process(request.getStrg(), request.getKeyWord());
+                        matched = System.nanoTime();
+                        metrics.requestsMatched(1, instances, matched - parsed);
+                        appendFrameReply(engine.getOutput(), engine.getOutputLength(), engine.getInstanceCounters());
+                    }
+                    sendNanos += System.nanoTime() - matched;
+                }
+            } finally {
+                frames.compact();
+            }
+            return sendNanos;
+        }
+
+        /**
+         * Hides the keywords of a batch in parallel once all of its requests have arrived, and encodes the replies
+         * into the shared write buffer in the order of the requests.
+         *
+         * @return The time spent encoding the replies, in nanoseconds.
+         */
+        private long appendBatchIfComplete(Connection connection) {
+            if (connection.batch.size() < connection.batchSize) {
+                return 0;
+            }
+            metrics.parsed(connection.parseNanos);
+            connection.parseNanos = 0;
+
+            long parsed = System.nanoTime();
+            List<AnonymizationResult> results = BatchAnonymizer.anonymizeAll(connection.batch);
+            long matched = System.nanoTime();
+            metrics.requestsMatched(connection.batchSize, ServerMetrics.sum(results), matched - parsed);
+
+            for (AnonymizationResult result : results) {
+                appendLine(result.getMaskedStrg());
+                appendLine(AnonymizationResult.formatInstanceCounters(result.getInstanceCounters()));
+            }
+            connection.batch = null;
+            connection.batchBytes = 0;
+            return System.nanoTime() - matched;
+        }
+
+        /**
+         * Encodes a reply line into the shared write buffer.
+         *
+         * @param line The line to be sent, without its terminator.
+         */
+        private void appendLine(CharSequence line) {
+            encode(line, encoder);
+            encode(System.lineSeparator(), encoder);
+        }
+
+        /**
+         * Encodes a reply frame into the shared write buffer, writing the length of the masked string once it has
+         * been encoded.
+         *
+         * @param masked           The buffer holding the masked string.
+         * @param length           The length of the masked string.
+         * @param instanceCounters The instance counters, one per keyword.
+         */
+        private void appendFrameReply(char[] masked, int length, int[] instanceCounters) {
+            ensureWritable(6);
+            writeBuffer.put(TcpBinaryProtocol.REPLY).put((byte) 0);
+            int lengthPosition = writeBuffer.position();
+            writeBuffer.putInt(0);
+            encode(CharBuffer.wrap(masked, 0, length), utf8Encoder);
+            writeBuffer.putInt(lengthPosition, writeBuffer.position() - lengthPosition - 4);
+
+            ensureWritable(4 + 4 * instanceCounters.length);
+            writeBuffer.putInt(instanceCounters.length);
+            for (int instanceCounter : instanceCounters) {
+                writeBuffer.putInt(instanceCounter);
+            }
+        }
+
+        private void encode(CharSequence text, CharsetEncoder encoder) {
+            CharBuffer chars = CharBuffer.wrap(text);
+            encoder.reset();
+            while (encoder.encode(chars, writeBuffer, true).isOverflow()) {
+                growWriteBuffer();
+            }
+            while (encoder.flush(writeBuffer).isOverflow()) {
+                growWriteBuffer();
+            }
+        }
+
+        private void ensureWritable(int bytes) {
+            while (writeBuffer.remaining() < bytes) {
+                growWriteBuffer();
+            }
+        }
+
+        private void growWriteBuffer() {
+            ByteBuffer larger = ByteBuffer.allocateDirect(writeBuffer.capacity() * 2);
+            writeBuffer.flip();
+            larger.put(writeBuffer);
+            writeBuffer = larger;
+        }
+
+        /**
+         * Writes the replies in the shared write buffer as far as the channel accepts them. Whatever is left is
+         * copied to the connection, and the connection stops being read until it has been written, so a client
+         * that does not read its replies cannot make the server buffer without limit.
+         */
+        private void writeReplies(SelectionKey key, SocketChannel channel, Connection connection) throws IOException {
+            writeBuffer.flip();
+            metrics.bytesSent(channel.write(writeBuffer));
+
+            if (writeBuffer.hasRemaining()) {
+                connection.pendingWrite = ByteBuffer.allocate(writeBuffer.remaining());
+                connection.pendingWrite.put(writeBuffer).flip();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void writePending(SelectionKey key, SocketChannel channel, Connection connection) throws IOException {
+            metrics.bytesSent(channel.write(connection.pendingWrite));
+            if (!connection.pendingWrite.hasRemaining()) {
+                connection.pendingWrite = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        // a key cancelled since the last select is still in the keys of the selector, but no longer counted
+        private void close(SelectionKey key) {
+            if (key.isValid()) {
+                metrics.connectionClosed();
+                log.debug("connection.close", "client",
+                        ((SocketChannel) key.channel()).socket().getRemoteSocketAddress(), null, null);
+            }
+            key.cancel();
+            closeQuietly(key.channel());
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Server exception: " + e.getMessage());
+            }
+        }
+
+        private static void closeQuietly(Channel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with this client
+            }
+        }
+    }
+
+    /**
+     * The framing state of a client connection: whether it uses the binary framing, the bytes of the line or
+     * frame being received, the string waiting for its keyword, the requests of a batch being received, the part of
+     * the reply the channel did not accept yet and the time spent framing the request being received.
+     */
+    private static class Connection {
+
+        private boolean negotiating = true;
+        private boolean binary;
+        private boolean versionAccepted;
+        private ByteBuffer frameBytes;
+
+        private byte[] lineBytes = new byte[256];
+        private int lineLength;
+        private boolean skipLineFeed;
+        private String strg;
+        private String streamKeyWord;
+        private List<AnonymizationRequest> batch;
+        private int batchSize;
+        private long batchBytes;
+        private ByteBuffer pendingWrite;
+        private long parseNanos;
+
+        /**
+         * Appends the bytes read to those of the frames not yet complete.
+         *
+         * @param buffer The bytes read from the channel, which are consumed.
+         * @return The bytes of the frames not yet complete, ready to be appended to.
+         */
+        ByteBuffer appendFrameBytes(ByteBuffer buffer) {
+            if (frameBytes == null) {
+                frameBytes = ByteBuffer.allocate(Math.max(256, buffer.remaining()));
+            } else if (frameBytes.remaining() < buffer.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(
+                        Math.max(frameBytes.capacity() * 2, frameBytes.position() + buffer.remaining()));
+                frameBytes.flip();
+                larger.put(frameBytes);
+                frameBytes = larger;
+            }
+            frameBytes.put(buffer);
+            return frameBytes;
+        }
+
+        /**
+         * Consumes bytes until the end of a line, which may be "\n", "\r" or "\r\n" as in BufferedReader.readLine.
+         *
+         * @param buffer The bytes read from the channel.
+         * @return The complete line without its terminator, or null if the buffer ended first.
+         * @throws IOException If the line is longer than {@link server_java_tcp#MAX_LINE_LENGTH} bytes.
+         */
+        String frameLine(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    skipLineFeed = b == '\r';
+                    String line = new String(lineBytes, 0, lineLength, Charset.defaultCharset());
+                    lineLength = 0;
+                    return line;
+                }
+                if (lineLength == lineBytes.length) {
+                    if (lineLength >= server_java_tcp.MAX_LINE_LENGTH) {
+                        throw new IOException("Line longer than " + server_java_tcp.MAX_LINE_LENGTH + " bytes");
+                    }
+                    lineBytes = Arrays.copyOf(lineBytes, lineBytes.length * 2);
+                }
+                lineBytes[lineLength++] = b;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The datagrams exchanged by {@link client_java_udp} and {@link server_java_udp}.
+ * Every datagram starts with a header holding its type, its flags, the id of the message it belongs to, a sequence
+ * number, the number of segments of the message and the size of its segments:
+ *
+ * <pre>
+ * [type: 1 byte][flags: 1 byte][message id: 4 bytes][sequence: 4 bytes][total: 4 bytes][segment size: 2 bytes][payload]
+ * </pre>
+ *
+ * A request is a single message, the length of the string in bytes followed by the string and the keyword, split
+ * into {@link #DATA} segments. The receiver answers with {@link #ACK} datagrams, whose sequence is the number of
+ * segments received in order and whose payload is a bitmap of the segments received after them, so only the
+ * missing ones are sent again. Acknowledgments are delayed and cover every segment received since the previous
+ * one: the sender flags the last segment of each burst with {@link #ACK_REQUESTED}, and the receiver acknowledges
+ * at once only that segment, the last one of the message and segments arriving out of order. The reply, the
+ * instance counters followed by the string with the hidden keyword, travels back the same way with the id of the
+ * request, in a single datagram when it fits, and its arrival acknowledges the whole request.
+ *
+ * A batch of requests travels as a single message starting with {@link #BATCH}, where a request starts with the
+ * length of its string, followed by the number of requests and each one as the lengths of its string and keyword
+ * followed by their bytes. Its reply starts with {@link #BATCH} as well, followed by the number of replies and each
+ * one as its counters and the length of its string followed by the string.
+ *
+ * The client picks the size of the segments from the MTU of the network interface towards the server, up to a
+ * configured maximum, and the server answers with segments no larger than those of the request.
+ */
+public final class UdpProtocol {
+
+    /**
+     * A segment of a message.
+     */
+    public static final byte DATA = 1;
+
+    /**
+     * The acknowledgment of the segments of a message received so far.
+     */
+    public static final byte ACK = 2;
+
+    /**
+     * Flag of a data segment asking the receiver to acknowledge it without delay.
+     */
+    public static final byte ACK_REQUESTED = 1;
+
+    /**
+     * First field of a batch message, in place of a length or a number of counters.
+     */
+    public static final int BATCH = -1;
+
+    /**
+     * Size of the header of every datagram.
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * Largest payload of a UDP datagram over IPv4.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * Largest payload of a data segment.
+     */
+    public static final int MAX_SEGMENT_SIZE = MAX_DATAGRAM_SIZE - HEADER_SIZE;
+
+    /**
+     * Default maximum datagram size: what fits, without fragmentation, in an Ethernet frame of 1500 bytes.
+     * Networks with jumbo frames can use up to 8972.
+     */
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1472;
+
+    /**
+     * Maximum size of a message, so a bogus header cannot make the receiver allocate without limit.
+     */
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    private static final int UDP_HEADER_SIZE = 8;
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int IPV6_HEADER_SIZE = 40;
+
+    private UdpProtocol() {
+    }
+
+    /**
+     * Writes the header of a datagram.
+     *
+     * @param buffer      The buffer of the datagram, positioned at its start.
+     * @param type        The type of the datagram.
+     * @param flags       The flags of the datagram.
+     * @param messageId   The id of the message.
+     * @param sequence    The sequence number, whose meaning depends on the type.
+     * @param total       The number of segments of the message.
+     * @param segmentSize The size of the segments of the message.
+     */
+    public static void writeHeader(ByteBuffer buffer, byte type, byte flags, int messageId, int sequence, int total,
+                                   int segmentSize) {
+        buffer.put(type).put(flags).putInt(messageId).putInt(sequence).putInt(total).putShort((short) segmentSize);
+    }
+
+    /**
+     * Reads the segment size of a header.
+     *
+     * @param buffer The buffer of the datagram.
+     * @return The size of the segments of the message.
+     */
+    public static int segmentSize(ByteBuffer buffer) {
+        return Short.toUnsignedInt(buffer.getShort(14));
+    }
+
+    /**
+     * @param messageLength The length of a message in bytes.
+     * @param segmentSize   The size of its segments.
+     * @return The number of data segments carrying the message.
+     */
+    public static int segmentCount(int messageLength, int segmentSize) {
+        return Math.max(1, (messageLength + segmentSize - 1) / segmentSize);
+    }
+
+    /**
+     * Finds the largest datagram that can be sent to a host without being fragmented by the local network
+     * interface. The MTU of the interface bounds the path MTU; paths with smaller links need a smaller maximum.
+     *
+     * @param destination     The host the datagrams are sent to.
+     * @param maxDatagramSize The configured maximum size of a datagram.
+     * @return The size of the datagrams to be sent to the host.
+     */
+    public static int datagramSize(InetAddress destination, int maxDatagramSize) {
+        int size = Math.min(maxDatagramSize, MAX_DATAGRAM_SIZE);
+        try (DatagramSocket probe = new DatagramSocket()) {
+            // connecting a datagram socket only picks the route, nothing is sent
+            probe.connect(destination, 9);
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (networkInterface != null && networkInterface.getMTU() > 0) {
+                int ipHeaderSize = destination instanceof Inet6Address ? IPV6_HEADER_SIZE : IPV4_HEADER_SIZE;
+                size = Math.min(size, networkInterface.getMTU() - ipHeaderSize - UDP_HEADER_SIZE);
+            }
+        } catch (IOException e) {
+            // keep the configured maximum
+        }
+        return Math.max(HEADER_SIZE + 1, size);
+    }
+
+    /**
+     * Builds the message of a request.
+     *
+     * @param strg    The string to be hidden.
+     * @param keyWord The keyword, or a keyword set.
+     * @return The bytes of the message.
+     */
+    public static byte[] encodeRequest(String strg, String keyWord) {
+        byte[] strgBytes = strg.getBytes();
+        byte[] keyWordBytes = keyWord.getBytes();
+        return ByteBuffer.allocate(4 + strgBytes.length + keyWordBytes.length)
+                .putInt(strgBytes.length)
+                .put(strgBytes)
+                .put(keyWordBytes)
+                .array();
+    }
+
+    /**
+     * Reads the message of a request, decoding the string and the keyword.
+     *
+     * @param message The message, from the position to the limit of the buffer, which is consumed.
+     * @return The request, or null if the message is malformed.
+     */
+    public static AnonymizationRequest decodeRequest(ByteBuffer message) {
+        if (message.remaining() < 4) {
+            return null;
+        }
+        int strgLength = message.getInt();
+        if (strgLength < 0 || strgLength > message.remaining()) {
+            return null;
+        }
+        String strg = decode(message, strgLength);
+        String keyWord = Charset.defaultCharset().decode(message).toString();
+        return new AnonymizationRequest(strg, keyWord);
+    }
+
+    /**
+     * Hides the keyword of a request without decoding its message: the string is copied into the reply, where a
+     * {@link Utf8Anonymizer} masks it in place. The strings must be encoded in UTF-8.
+     *
+     * @param message    The message of a request, from the position to the limit of the buffer, which is not consumed.
+     * @param anonymizer The anonymizer of the calling thread.
+     * @return The bytes of the reply, with a single instance counter, or null if the request must be decoded with
+     * {@link #decodeRequest(ByteBuffer)} and handled by the {@link AnonymizationEngine}.
+     */
+    public static byte[] anonymizeRequest(ByteBuffer message, Utf8Anonymizer anonymizer) {
+        if (message.remaining() < 4) {
+            return null;
+        }
+        int strgLength = message.getInt(message.position());
+        if (strgLength < 0 || strgLength > message.remaining() - 4) {
+            return null;
+        }
+        int strgFrom = message.position() + 4;
+        int strgTo = strgFrom + strgLength;
+        if (!anonymizer.setKeyword(message, strgTo, message.limit())) {
+            return null;
+        }
+
+        byte[] reply = new byte[8 + strgLength];
+        ByteBuffer strg = message.duplicate();
+        strg.position(strgFrom);
+        strg.get(reply, 8, strgLength);
+        int instanceCounter = anonymizer.process(reply, 8, reply.length);
+        if (instanceCounter == Utf8Anonymizer.UNSUPPORTED) {
+            return null;
+        }
+        ByteBuffer.wrap(reply).putInt(1).putInt(instanceCounter);
+        return reply;
+    }
+
+    /**
+     * Builds the message of a reply: the number of counters, the counters and the string with the hidden keyword.
+     *
+     * @param result The result of the request.
+     * @return The bytes of the message.
+     */
+    public static byte[] encodeReply(AnonymizationResult result) {
+        int[] instanceCounters = result.getInstanceCounters();
+        byte[] maskedStrg = result.getMaskedStrg().getBytes();
+        ByteBuffer reply = ByteBuffer.allocate(4 + 4 * instanceCounters.length + maskedStrg.length);
+        reply.putInt(instanceCounters.length);
+        for (int instanceCounter : instanceCounters) {
+            reply.putInt(instanceCounter);
+        }
+        return reply.put(maskedStrg).array();
+    }
+
+    /**
+     * Reads the message of a reply.
+     *
+     * @param message The message, from the position to the limit of the buffer, which is consumed.
+     * @return The result, or null if the message is malformed.
+     */
+    public static AnonymizationResult decodeReply(ByteBuffer message) {
+        if (message.remaining() < 4) {
+            return null;
+        }
+        int count = message.getInt();
+        if (count < 0 || count > message.remaining() / 4) {
+            return null;
+        }
+        int[] instanceCounters = new int[count];
+        for (int i = 0; i < count; i++) {
+            instanceCounters[i] = message.getInt();
+        }
+        return new AnonymizationResult(Charset.defaultCharset().decode(message).toString(), instanceCounters);
+    }
+
+    /**
+     * @param message The message of a request or a reply, from the position to the limit of the buffer.
+     * @return True if the message is a batch.
+     */
+    public static boolean isBatch(ByteBuffer message) {
+        return message.remaining() >= 4 && message.getInt(message.position()) == BATCH;
+    }
+
+    /**
+     * Builds the message of a batch of requests.
+     *
+     * @param requests The strings and keywords.
+     * @return The bytes of the message.
+     */
+    public static byte[] encodeBatchRequest(List<AnonymizationRequest> requests) {
+        byte[][] fields = new byte[2 * requests.size()][];
+        int size = 8;
+        for (int i = 0; i < requests.size(); i++) {
+            fields[2 * i] = requests.get(i).getStrg().getBytes();
+            fields[2 * i + 1] = requests.get(i).getKeyWord().getBytes();
+            size += 8 + fields[2 * i].length + fields[2 * i + 1].length;
+        }
+        ByteBuffer message = ByteBuffer.allocate(size).putInt(BATCH).putInt(requests.size());
+        for (int i = 0; i < fields.length; i += 2) {
+            message.putInt(fields[i].length).putInt(fields[i + 1].length).put(fields[i]).put(fields[i + 1]);
+        }
+        return message.array();
+    }
+
+    /**
+     * Reads the message of a batch of requests.
+     *
+     * @param message The message, from the position to the limit of the buffer, which is consumed.
+     * @return The requests, or null if the message is malformed.
+     */
+    public static List<AnonymizationRequest> decodeBatchRequest(ByteBuffer message) {
+        if (message.remaining() < 8 || message.getInt() != BATCH) {
+            return null;
+        }
+        int count = message.getInt();
+        if (count < 0 || count > message.remaining() / 8) {
+            return null;
+        }
+        List<AnonymizationRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (message.remaining() < 8) {
+                return null;
+            }
+            int strgLength = message.getInt();
+            int keyWordLength = message.getInt();
+            if (strgLength < 0 || keyWordLength < 0 || strgLength > message.remaining() - keyWordLength) {
+                return null;
+            }
+            requests.add(new AnonymizationRequest(decode(message, strgLength), decode(message, keyWordLength)));
+        }
+        return requests;
+    }
+
+    /**
+     * Builds the message of the replies to a batch.
+     *
+     * @param results The results of the requests, in their order.
+     * @return The bytes of the message.
+     */
+    public static byte[] encodeBatchReply(List<AnonymizationResult> results) {
+        byte[][] maskedStrgs = new byte[results.size()][];
+        int size = 8;
+        for (int i = 0; i < results.size(); i++) {
+            maskedStrgs[i] = results.get(i).getMaskedStrg().getBytes();
+            size += 8 + 4 * results.get(i).getInstanceCounters().length + maskedStrgs[i].length;
+        }
+        ByteBuffer message = ByteBuffer.allocate(size).putInt(BATCH).putInt(results.size());
+        for (int i = 0; i < maskedStrgs.length; i++) {
+            int[] instanceCounters = results.get(i).getInstanceCounters();
+            message.putInt(instanceCounters.length);
+            for (int instanceCounter : instanceCounters) {
+                message.putInt(instanceCounter);
+            }
+            message.putInt(maskedStrgs[i].length).put(maskedStrgs[i]);
+        }
+        return message.array();
+    }
+
+    /**
+     * Reads the message of the replies to a batch.
+     *
+     * @param message The message, from the position to the limit of the buffer, which is consumed.
+     * @return The results, in the order of the requests, or null if the message is malformed.
+     */
+    public static List<AnonymizationResult> decodeBatchReply(ByteBuffer message) {
+        if (message.remaining() < 8 || message.getInt() != BATCH) {
+            return null;
+        }
+        int count = message.getInt();
+        if (count < 0 || count > message.remaining() / 8) {
+            return null;
+        }
+        List<AnonymizationResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int counterCount = message.remaining() < 4 ? -1 : message.getInt();
+            if (counterCount < 0 || counterCount > (message.remaining() - 4) / 4) {
+                return null;
+            }
+            int[] instanceCounters = new int[counterCount];
+            for (int c = 0; c < counterCount; c++) {
+                instanceCounters[c] = message.getInt();
+            }
+            int length = message.getInt();
+            if (length < 0 || length > message.remaining()) {
+                return null;
+            }
+            results.add(new AnonymizationResult(decode(message, length), instanceCounters));
+        }
+        return results;
+    }
+
+    private static String decode(ByteBuffer message, int length) {
+        int end = message.limit();
+        message.limit(message.position() + length);
+        String text = Charset.defaultCharset().decode(message).toString();
+        message.limit(end);
+        return text;
+    }
+}
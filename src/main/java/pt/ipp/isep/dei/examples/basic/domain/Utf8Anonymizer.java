@@ -0,0 +1,279 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hides a keyword in a string encoded in UTF-8 and counts its instances without decoding the string, with the same
+ * results as {@link AnonymizationEngine}. The string is masked in place, in the buffer of the reply it was copied
+ * into, so a request needs neither the decoded string, nor its lower-case copy, nor the encoded masked string.
+ *
+ * Only a single keyword of ASCII characters is handled this way. Its instances are then made of ASCII bytes, which
+ * never occur inside the encoding of another character, so the ASCII bytes are compared after folding their case
+ * and the other characters are only decoded to find the word boundaries around an instance. A masked character is
+ * a single 'X', so the masked string has exactly the bytes of the string. The runs of ASCII bytes that cannot start
+ * an instance are skipped by a {@link KeywordScanner}, with the Vector API when it is available, and a large string
+ * is split into chunks processed in parallel ({@link ParallelChunks}).
+ *
+ * A string the engine would not map character by character (a character outside the Basic Multilingual Plane,
+ * U+0130 or U+03A3), one holding the Kelvin sign U+212A, whose lower case is 'k', or bytes that are not valid UTF-8
+ * are reported as {@link #UNSUPPORTED}, and must be decoded and given to the engine instead.
+ *
+ * An anonymizer is not thread-safe; {@link #forCurrentThread()} gives each thread its own.
+ */
+public final class Utf8Anonymizer {
+
+    /**
+     * Returned instead of an instance counter for a string that must be handled by {@link AnonymizationEngine}.
+     */
+    public static final int UNSUPPORTED = -1;
+
+    private static final ThreadLocal<Utf8Anonymizer> ANONYMIZERS = ThreadLocal.withInitial(Utf8Anonymizer::new);
+
+    private final KeywordScanner scanner = KeywordScanner.shared();
+    private byte[] loweredKeyword = new byte[32];
+    private int keywordLength;
+
+    /**
+     * @return The anonymizer of the calling thread.
+     */
+    public static Utf8Anonymizer forCurrentThread() {
+        return ANONYMIZERS.get();
+    }
+
+    /**
+     * @return Whether the strings the servers exchange in the default charset may be handled as UTF-8 bytes, as
+     * they are unless the default charset or locale of the process is changed.
+     */
+    public static boolean isSupported() {
+        return Charset.defaultCharset().equals(StandardCharsets.UTF_8) && AnonymizationEngine.isSimpleLocale();
+    }
+
+    /**
+     * Takes the keyword hidden by the next calls to {@link #process}.
+     *
+     * @param keyWord The buffer holding the keyword field of a request, encoded in UTF-8.
+     * @param from    The index of the first byte of the field.
+     * @param to      The index after the last byte of the field.
+     * @return Whether the keyword can be hidden by this anonymizer, false for an empty keyword, a keyword set or
+     * a keyword with characters other than ASCII.
+     */
+    public boolean setKeyword(ByteBuffer keyWord, int from, int to) {
+        int length = to - from;
+        if (length == 0 || keyWord.get(from) == KeywordSet.MARKER) {
+            return false;
+        }
+        if (loweredKeyword.length < length) {
+            loweredKeyword = new byte[Math.max(length, loweredKeyword.length * 2)];
+        }
+        for (int j = 0; j < length; j++) {
+            byte b = keyWord.get(from + j);
+            if (b < 0) {
+                return false;
+            }
+            loweredKeyword[j] = toLowerAscii(b);
+        }
+        keywordLength = length;
+        return true;
+    }
+
+    /**
+     * Hides the keyword in a string and counts its instances, as {@link AnonymizationEngine#process} does.
+     *
+     * @param strg The buffer holding the string, encoded in UTF-8, which is masked in place.
+     * @param from The index of the first byte of the string.
+     * @param to   The index after the last byte of the string.
+     * @return The number of instances of the keyword, or {@link #UNSUPPORTED} if the string must be handled by
+     * the engine, in which case the string is left partly masked.
+     */
+    public int process(byte[] strg, int from, int to) {
+        if (ParallelChunks.isWorthSplitting(to - from)) {
+            return ParallelChunks.process(from, to, index -> isBoundary(strg[index - 1]),
+                    (chunkFrom, chunkTo) -> processChunk(strg, chunkFrom, chunkTo, to, chunkFrom > from));
+        }
+        return processChunk(strg, from, to, to, false);
+    }
+
+    /**
+     * Hides the keyword in a chunk of the string and counts the instances starting in it, which must end in it.
+     *
+     * @param end           The index after the last byte of the string.
+     * @param afterBoundary Whether the chunk follows a byte accepted by {@link #isBoundary}, rather than starting the
+     *                      string.
+     */
+    private int processChunk(byte[] strg, int from, int to, int end, boolean afterBoundary) {
+        byte first = loweredKeyword[0];
+        byte last = loweredKeyword[keywordLength - 1];
+
+        int maskEnd = from;
+        int countFrom = from;
+        int instanceCounter = 0;
+        boolean baseIsLetterOrDigit = afterBoundary && isAsciiLetterOrDigit(toLowerAscii(strg[from - 1]));
+        boolean previousIsWord = afterBoundary && isWordAt(strg, from - 1);
+
+        int i = from;
+        while (i < to) {
+            if (i >= maskEnd) {
+                // skip the ASCII bytes that cannot start an instance, keeping the word of the last one
+                int next = scanner.next(strg, i, to, first, last, keywordLength);
+                if (next > i) {
+                    byte lower = toLowerAscii(strg[next - 1]);
+                    baseIsLetterOrDigit = isAsciiLetterOrDigit(lower);
+                    previousIsWord = baseIsLetterOrDigit || lower == '_';
+                    i = next;
+                    if (i == to) {
+                        break;
+                    }
+                }
+            }
+            byte b = strg[i];
+            if (b >= 0) {
+                byte lower = toLowerAscii(b);
+                boolean isLetterOrDigit = isAsciiLetterOrDigit(lower);
+                boolean isWord = isLetterOrDigit || lower == '_';
+                baseIsLetterOrDigit = isLetterOrDigit;
+
+                // an instance is made of ASCII characters, whose lower case is the same for hiding and counting
+                if (lower == first && (i >= maskEnd || i >= countFrom) && i + keywordLength <= end
+                        && matchesIgnoringAsciiCase(strg, i)) {
+                    int instanceEnd = i + keywordLength;
+                    if (i >= maskEnd) {
+                        maskEnd = instanceEnd;
+                    }
+                    if (i >= countFrom && previousIsWord != isWord
+                            && isWordAt(strg, instanceEnd - 1) != isWordAfter(strg, instanceEnd, end)) {
+                        instanceCounter++;
+                        countFrom = instanceEnd;
+                    }
+                }
+
+                if (i < maskEnd) {
+                    strg[i] = 'X';
+                }
+                previousIsWord = isWord;
+                i++;
+                continue;
+            }
+
+            int c = decode(strg, i, end);
+            if (c < 0) {
+                return UNSUPPORTED;
+            }
+            char lower = Character.toLowerCase((char) c);
+            boolean isWord;
+            if (Character.getType(lower) == Character.NON_SPACING_MARK) {
+                isWord = baseIsLetterOrDigit;
+            } else {
+                isWord = Character.isLetterOrDigit(lower);
+                baseIsLetterOrDigit = isWord;
+            }
+
+            // other characters are never part of an instance, so they are left as they are
+            previousIsWord = isWord;
+            i += c < 0x800 ? 2 : 3;
+        }
+        return instanceCounter;
+    }
+
+    /**
+     * Tells if a chunk may start after a byte: an ASCII character that is not part of the keyword.
+     */
+    private boolean isBoundary(byte b) {
+        if (b < 0) {
+            return false;
+        }
+        byte lower = toLowerAscii(b);
+        for (int j = 0; j < keywordLength; j++) {
+            if (loweredKeyword[j] == lower) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesIgnoringAsciiCase(byte[] strg, int from) {
+        for (int j = 1; j < keywordLength; j++) {
+            if (toLowerAscii(strg[from + j]) != loweredKeyword[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells if the ASCII character at an index is a word character for "\b".
+     */
+    private static boolean isWordAt(byte[] strg, int index) {
+        byte lower = toLowerAscii(strg[index]);
+        return lower == '_' || isAsciiLetterOrDigit(lower);
+    }
+
+    /**
+     * Tells if the character at an index, right after an instance of the keyword, is a word character for "\b".
+     * A non spacing mark takes the word of the last character of the instance.
+     */
+    private static boolean isWordAfter(byte[] strg, int index, int to) {
+        if (index >= to) {
+            return false;
+        }
+        if (strg[index] >= 0) {
+            return isWordAt(strg, index);
+        }
+        int c = decode(strg, index, to);
+        if (c < 0) {
+            // the string is reported as unsupported once the loop reaches this character
+            return false;
+        }
+        char lower = Character.toLowerCase((char) c);
+        if (lower == '_' || Character.isLetterOrDigit(lower)) {
+            return true;
+        }
+        return Character.getType(lower) == Character.NON_SPACING_MARK
+                && isAsciiLetterOrDigit(toLowerAscii(strg[index - 1]));
+    }
+
+    /**
+     * Decodes the character of two or three bytes starting at an index.
+     *
+     * @return The character, or -1 if the bytes are not valid UTF-8, encode a character outside the Basic
+     * Multilingual Plane, or encode a character the engine does not map character by character.
+     */
+    private static int decode(byte[] strg, int index, int to) {
+        int b0 = strg[index] & 0xFF;
+        int c;
+        if (b0 >= 0xC2 && b0 <= 0xDF) {
+            if (index + 1 >= to || !isContinuation(strg[index + 1])) {
+                return -1;
+            }
+            c = (b0 & 0x1F) << 6 | strg[index + 1] & 0x3F;
+        } else if (b0 >= 0xE0 && b0 <= 0xEF) {
+            if (index + 2 >= to || !isContinuation(strg[index + 1]) || !isContinuation(strg[index + 2])) {
+                return -1;
+            }
+            c = (b0 & 0x0F) << 12 | (strg[index + 1] & 0x3F) << 6 | strg[index + 2] & 0x3F;
+            // overlong encodings and surrogates are not valid UTF-8
+            if (c < 0x800 || Character.isSurrogate((char) c)) {
+                return -1;
+            }
+        } else {
+            return -1;
+        }
+        if (c == '\u0130' || c == '\u03A3' || c == '\u212A') {
+            return -1;
+        }
+        return c;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    private static boolean isAsciiLetterOrDigit(byte lower) {
+        return lower >= 'a' && lower <= 'z' || lower >= '0' && lower <= '9';
+    }
+
+    private static byte toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -1,20 +1,54 @@
 package pt.ipp.isep.dei.examples.basic.domain;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents a TCP client that connects to a TCP server and communicates by sending and receiving data.
  * The client accepts user input for the server's hostname, port, a user string, and a user keyword.
  * It establishes a connection to the server, sends the user string and keyword, and receives a modified
  * string and an instance counter from the server.
+ * The connection can also be kept open to send many requests, pipelined ahead of their replies or
+ * sent as one batch, or strings of any length, streamed through the server.
+ * A client connected with {@link #connectBinary} sends its pipelined and batched requests in the binary framing of
+ * {@link TcpBinaryProtocol} instead of lines, so their strings may hold any character.
  */
 public class client_java_tcp {
+
+    /**
+     * Maximum number of requests sent ahead of their replies when pipelining.
+     */
+    public static final int PIPELINE_MAX_REQUESTS = 256;
+
+    /**
+     * Maximum number of characters of requests sent ahead of their replies when pipelining. Keeping it well below
+     * the socket buffers guarantees that the server never blocks writing replies while the client is still writing.
+     */
+    public static final int PIPELINE_MAX_CHARS = 32 * 1024;
+
+    private static final int STREAM_CHUNK_SIZE = 8192;
+
     private Socket socket;
+    private PrintWriter pipelineOut;
+    private BufferedReader pipelineIn;
+    private DataOutputStream binaryOut;
+    private DataInputStream binaryIn;
 
     /**
      * Constructor method to create socket objects.
@@ -34,6 +68,61 @@ public class client_java_tcp {
         }
     }
 
+    private client_java_tcp(Socket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Connects a client for programmatic use, failing instead of printing the error if the server cannot be reached.
+     *
+     * @param hostname      The name of the TCP server to which the client is going to connect.
+     * @param port          The port bound to the server living at hostname.
+     * @param timeoutMillis The time allowed to connect, and to wait for each read from the server.
+     * @return The client, whose connection stays open until {@link #close()}.
+     * @throws IOException If the connection cannot be established.
+     */
+    public static client_java_tcp connect(String hostname, int port, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(new InetSocketAddress(hostname, port), timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new client_java_tcp(socket);
+    }
+
+    /**
+     * Connects a client that speaks the binary framing of {@link TcpBinaryProtocol}, agreeing on its version with
+     * the server before returning.
+     *
+     * @param hostname      The name of the TCP server to which the client is going to connect.
+     * @param port          The port bound to the server living at hostname.
+     * @param timeoutMillis The time allowed to connect, and to wait for each read from the server.
+     * @return The client, whose connection stays open until {@link #close()}.
+     * @throws IOException If the connection cannot be established or the server does not speak the version.
+     */
+    public static client_java_tcp connectBinary(String hostname, int port, int timeoutMillis) throws IOException {
+        client_java_tcp client = connect(hostname, port, timeoutMillis);
+        try {
+            client.binaryOut = new DataOutputStream(new BufferedOutputStream(client.socket.getOutputStream()));
+            client.binaryIn = new DataInputStream(new BufferedInputStream(client.socket.getInputStream()));
+            TcpBinaryProtocol.writePreamble(client.binaryOut);
+            client.binaryOut.flush();
+            int version = client.binaryIn.readUnsignedByte();
+            if (version != TcpBinaryProtocol.VERSION) {
+                throw new IOException("Binary protocol version " + TcpBinaryProtocol.VERSION
+                        + " refused by the server");
+            }
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
     /**
      * Repeatedly reads a line from the terminal, sends it to the server, and waits for a reply.
      * This method also reads data from the server and prints it to the screen.
@@ -57,7 +146,7 @@ public class client_java_tcp {
 
 
             // to send userStr to server
-            out.println(userStr);
+            out.println(checkLine(userStr));
             //to send userKeyword to server
             out.println(userKeyword);
 
@@ -67,7 +156,12 @@ public class client_java_tcp {
             //read and print the instanceCounter associated string
             String instanceCounter = in.readLine();
             //System.out.println(instanceCounter);
-            for (int i = 0; i < Integer.parseInt(instanceCounter); i++) {
+            // a keyword set has one counter per keyword
+            int totalInstances = 0;
+            for (int counter : AnonymizationResult.parseInstanceCounters(instanceCounter)) {
+                totalInstances += counter;
+            }
+            for (int i = 0; i < totalInstances; i++) {
                 System.out.println("Socket Programming");
             }
 
@@ -91,6 +185,240 @@ public class client_java_tcp {
 
     }
 
+    /**
+     * Sends several requests over the connection, which stays open for further calls, and returns the replies
+     * in the order of the requests. Requests are written ahead of their replies, up to
+     * {@link #PIPELINE_MAX_REQUESTS} requests or {@link #PIPELINE_MAX_CHARS} characters, so the cost of a round
+     * trip is shared by many requests.
+     *
+     * @param requests The strings and keywords to be sent to the server.
+     * @return The modified strings and instance counters, in the order of the requests.
+     * @throws IOException If an I/O error occurs or the server closes the connection.
+     */
+    public List<AnonymizationResult> sendPipelined(List<AnonymizationRequest> requests) throws IOException {
+        openStreams();
+
+        List<AnonymizationResult> results = new ArrayList<>(requests.size());
+        int[] sentChars = new int[requests.size()];
+        int outstandingChars = 0;
+        int sent = 0;
+
+        while (results.size() < requests.size()) {
+            // write requests while the window allows it, at least one if nothing is outstanding
+            while (sent < requests.size()
+                    && (sent == results.size()
+                    || (sent - results.size() < PIPELINE_MAX_REQUESTS
+                    && outstandingChars + length(requests.get(sent)) <= PIPELINE_MAX_CHARS))) {
+                AnonymizationRequest request = requests.get(sent);
+                if (binaryOut != null) {
+                    TcpBinaryProtocol.writeRequest(binaryOut, request);
+                } else {
+                    pipelineOut.println(checkLine(request.getStrg()));
+                    pipelineOut.println(request.getKeyWord());
+                }
+                sentChars[sent] = length(request);
+                outstandingChars += sentChars[sent];
+                sent++;
+            }
+            flushRequests();
+
+            // read the reply to the oldest outstanding request
+            outstandingChars -= sentChars[results.size()];
+            results.add(readReply());
+        }
+        return results;
+    }
+
+    /**
+     * Sends several requests as one batch over the connection, which stays open for further calls. The server
+     * reads the whole batch, hides the keywords of its requests in parallel and sends the replies back together,
+     * in the order of the requests.
+     *
+     * @param requests The strings and keywords to be sent to the server, at most
+     *                 {@link server_java_tcp#MAX_BATCH_SIZE}; unless the client uses the binary framing, the
+     *                 strings must not contain line terminators.
+     * @return The modified strings and instance counters, in the order of the requests.
+     * @throws IOException If an I/O error occurs or the server closes the connection.
+     */
+    public List<AnonymizationResult> sendBatch(List<AnonymizationRequest> requests) throws IOException {
+        if (requests.size() > server_java_tcp.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Too many requests in a batch: " + requests.size());
+        }
+        openStreams();
+
+        if (binaryOut != null) {
+            TcpBinaryProtocol.writeBatch(binaryOut, requests);
+        } else {
+            pipelineOut.print(server_java_tcp.BATCH_MARKER);
+            pipelineOut.println(requests.size());
+            for (AnonymizationRequest request : requests) {
+                pipelineOut.println(request.getStrg());
+                pipelineOut.println(request.getKeyWord());
+            }
+        }
+        flushRequests();
+
+        List<AnonymizationResult> results = new ArrayList<>(requests.size());
+        while (results.size() < requests.size()) {
+            results.add(readReply());
+        }
+        return results;
+    }
+
+    private void flushRequests() throws IOException {
+        if (binaryOut != null) {
+            binaryOut.flush();
+        } else {
+            pipelineOut.flush();
+            if (pipelineOut.checkError()) {
+                throw new IOException("Connection closed by the server");
+            }
+        }
+    }
+
+    private AnonymizationResult readReply() throws IOException {
+        if (binaryIn != null) {
+            return TcpBinaryProtocol.readReply(binaryIn);
+        }
+        String maskedStrg = pipelineIn.readLine();
+        String instanceCounter = pipelineIn.readLine();
+        if (maskedStrg == null || instanceCounter == null) {
+            throw new IOException("Connection closed by the server");
+        }
+        return new AnonymizationResult(maskedStrg, AnonymizationResult.parseInstanceCounters(instanceCounter));
+    }
+
+    /**
+     * @param strg The string of a request, to be sent as a line on its own.
+     * @return The string.
+     * @throws IllegalArgumentException If the string starts with a character the line protocol reserves, so it can
+     *                                  only be sent with the binary framing or in a batch.
+     */
+    private static String checkLine(String strg) {
+        if (strg.isEmpty()) {
+            return strg;
+        }
+        char first = strg.charAt(0);
+        if (first == TcpBinaryProtocol.PREAMBLE) {
+            throw new IllegalArgumentException("A string starting with NUL needs the binary framing");
+        }
+        if (first == server_java_tcp.STREAM_MARKER) {
+            throw new IllegalArgumentException("A string starting with the stream marker needs the binary framing");
+        }
+        if (first == server_java_tcp.BATCH_MARKER) {
+            throw new IllegalArgumentException("A string starting with the batch marker needs the binary framing");
+        }
+        return strg;
+    }
+
+    private static int length(AnonymizationRequest request) {
+        return request.getStrg().length() + request.getKeyWord().length();
+    }
+
+    /**
+     * Sends a string of any length to be hidden as it is read, and writes the hidden string as it comes back, so
+     * neither side keeps the whole string in memory. The string is uploaded by a separate thread while the reply
+     * is being read. The connection stays open for further calls. Streaming is only part of the line protocol.
+     *
+     * @param source  The string to be hidden, which must not contain line terminators.
+     * @param keyWord The keyword to be hidden, or a keyword set.
+     * @param sink    The writer receiving the hidden string.
+     * @return The number of instances of each keyword.
+     * @throws IOException If an I/O error occurs, while reading the source or talking to the server.
+     */
+    public int[] sendStreaming(Reader source, String keyWord, Writer sink) throws IOException {
+        if (binaryOut != null) {
+            throw new IllegalStateException("Streaming requests are not part of the binary framing");
+        }
+        openStreams();
+        PrintWriter out = pipelineOut;
+        out.print(server_java_tcp.STREAM_MARKER);
+        out.println(keyWord);
+        flushRequests();
+
+        AtomicReference<IOException> uploadError = new AtomicReference<>();
+        Thread upload = new Thread(() -> {
+            char[] chunk = new char[STREAM_CHUNK_SIZE];
+            try {
+                int read;
+                while ((read = source.read(chunk)) >= 0) {
+                    out.write(chunk, 0, read);
+                }
+                out.println();
+                out.flush();
+                // the PrintWriter keeps the errors of the socket to itself
+                if (out.checkError()) {
+                    throw new IOException("Connection closed by the server while uploading the string");
+                }
+            } catch (IOException e) {
+                uploadError.set(e);
+                close();
+            }
+        }, "tcp-stream-upload");
+        upload.start();
+
+        // the hidden string ends at the first line terminator, the instance counters follow on their own line
+        char[] chunk = new char[STREAM_CHUNK_SIZE];
+        boolean ended = false;
+        while (!ended) {
+            pipelineIn.mark(chunk.length);
+            int read = pipelineIn.read(chunk, 0, chunk.length);
+            if (read < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+            int length = read;
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] == '\n' || chunk[i] == '\r') {
+                    length = i;
+                    ended = true;
+                    pipelineIn.reset();
+                    pipelineIn.skip(i + 1);
+                    break;
+                }
+            }
+            sink.write(chunk, 0, length);
+        }
+        sink.flush();
+
+        String instanceCounters = pipelineIn.readLine();
+        while (instanceCounters != null && instanceCounters.isEmpty()) {
+            // the line feed of a "\r\n" terminator
+            instanceCounters = pipelineIn.readLine();
+        }
+
+        try {
+            upload.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading the string", e);
+        }
+        if (uploadError.get() != null) {
+            throw uploadError.get();
+        }
+        if (instanceCounters == null) {
+            throw new IOException("Connection closed by the server");
+        }
+        return AnonymizationResult.parseInstanceCounters(instanceCounters);
+    }
+
+    private void openStreams() throws IOException {
+        if (pipelineOut == null && binaryOut == null) {
+            pipelineOut = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            pipelineIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+    }
+
+    /**
+     * Closes the connection to the server.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+        }
+    }
+
     /**
      * The entry point of the TCP client application.
      * Creates an instance of the TCP client with the specified hostname and port and starts the communication with the server.
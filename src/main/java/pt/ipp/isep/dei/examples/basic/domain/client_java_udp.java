@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -15,8 +18,16 @@ public class client_java_udp {
 
     private DatagramSocket udpSocket;
 
-    private byte[] receiveData = new byte[256];
-    private byte[] sendData = new byte[256];
+    private final int timeout;
+    private final int windowSize;
+    private final int maxDatagramSize;
+    private final RetransmissionTimer timer = new RetransmissionTimer();
+    private int nextMessageId = ThreadLocalRandom.current().nextInt();
+    private InetAddress sizedAddress;
+    private int segmentSize;
+
+    private byte[] receiveData = new byte[UdpProtocol.MAX_DATAGRAM_SIZE];
+    private byte[] sendData = new byte[SelectiveRepeatReceiver.MAX_ACK_SIZE];
 
 
     /**
@@ -27,6 +38,20 @@ public class client_java_udp {
      * @param timeout The timeout in milliseconds before the reception times out.
      */
     public client_java_udp(int timeout) {
+        this(timeout, SelectiveRepeatSender.DEFAULT_WINDOW_SIZE, UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * Initializes the client with a timeout for receiving responses, the size of its sending window and the
+     * largest datagram it sends.
+     *
+     * @param timeout         The timeout in milliseconds before the reception times out.
+     * @param windowSize      The number of segments sent ahead of their acknowledgments.
+     * @param maxDatagramSize The largest datagram sent, further limited by the MTU of the network interface.
+     */
+    public client_java_udp(int timeout, int windowSize, int maxDatagramSize) {
+        this(null, timeout, windowSize, maxDatagramSize);
+
         // Create a new DatagramSocket
 
         try {
@@ -39,12 +64,38 @@ public class client_java_udp {
         }
     }
 
+    private client_java_udp(DatagramSocket udpSocket, int timeout, int windowSize, int maxDatagramSize) {
+        this.udpSocket = udpSocket;
+        this.timeout = timeout;
+        this.windowSize = windowSize;
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * Opens a client for programmatic use, failing instead of printing the error if no socket can be opened.
+     *
+     * @param timeout         The timeout in milliseconds before the reception times out.
+     * @param windowSize      The number of segments sent ahead of their acknowledgments.
+     * @param maxDatagramSize The largest datagram sent, further limited by the MTU of the network interface.
+     * @return The client, whose socket stays open until {@link #close()}.
+     * @throws SocketException If the socket cannot be opened.
+     */
+    public static client_java_udp open(int timeout, int windowSize, int maxDatagramSize) throws SocketException {
+        DatagramSocket udpSocket = new DatagramSocket();
+        try {
+            udpSocket.setSoTimeout(timeout);
+        } catch (SocketException e) {
+            udpSocket.close();
+            throw e;
+        }
+        return new client_java_udp(udpSocket, timeout, windowSize, maxDatagramSize);
+    }
+
     /**
      * Sends a string and a keyword to the server and processes the response.
-     * The method sends the length of the string and the keyword to the server, then sends the string and keyword
-     * in segments if necessary. It then receives and prints the modified string and the count of how many times
-     * the keyword occurred.
-     * The method also receives and prints the instance counter from the server.
+     * The string and the keyword are sent as one message, split into numbered segments that are sent in a window
+     * without waiting for each acknowledgment; only the segments the server did not receive are sent again.
+     * It then receives and prints the modified string and the count of how many times the keyword occurred.
      * Finally, it closes the UDP socket and other resources on the client side.
      *
      * @param hostName The server's hostname or IP address.
@@ -54,79 +105,183 @@ public class client_java_udp {
      */
     public void sendData(String hostName, int port, String strg, String keyWord) {
 
-        BufferedReader stdIn =
-                new BufferedReader(
-                        new InputStreamReader(System.in));
-
-        // Placeholder for actual socket initialization
-        DatagramPacket packet = null;
-
-
         try {
 
             InetAddress address = InetAddress.getByName(hostName);
 
-            // Send the length of the main string message to prepare the server for the incoming data size
-            byte[] lengthData = ByteBuffer.allocate(4).putInt(strg.length()).array();
+            AnonymizationResult result = anonymize(address, port, strg, keyWord);
 
-            DatagramPacket packetStringLength = new DatagramPacket(lengthData, lengthData.length, address, port);
-            udpSocket.send(packetStringLength);
+            // Print the encrypted message and the instance counter
+            System.out.println(result.getMaskedStrg());
+            printInstanceCounter(result.getInstanceCounter());
 
+            // Close the UDP socket and other resources on the client side
 
+            close();
 
-            // Determine the maximum packet size allowed and decide if segmentation is necessary
-            int maxPacketSize = udpSocket.getSendBufferSize();
-            int chunkSize = Math.min(sendData.length, maxPacketSize);
+        } catch (SocketTimeoutException e) {
+            System.err.println("Timeout reached: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Sends a string and a keyword to the server and waits for the reply, keeping the socket open.
+     * Both the request and the reply are sent in segments as large as the network interface towards the server
+     * allows, and each side acknowledges the segments of the other, delaying the acknowledgments so one covers a
+     * burst of segments. The first segment of the reply acknowledges the whole request.
+     *
+     * @param address The address of the server.
+     * @param port    The port of the server.
+     * @param strg    The string to be sent to the server.
+     * @param keyWord The keyword, or a keyword set, to be hidden.
+     * @return The string with the hidden keyword and the instance counters.
+     * @throws SocketTimeoutException If the server does not acknowledge the request or does not reply in time.
+     * @throws IOException            If an I/O error occurs.
+     */
+    public AnonymizationResult anonymize(InetAddress address, int port, String strg, String keyWord)
+            throws IOException {
+        AnonymizationResult result = UdpProtocol.decodeReply(exchange(address, port,
+                UdpProtocol.encodeRequest(strg, keyWord)));
+        if (result == null) {
+            throw new IOException("Invalid reply from the server");
+        }
+        return result;
+    }
 
-            StringBuilder appendedData = new StringBuilder();
+    /**
+     * Sends a batch of strings and keywords to the server as a single message and waits for the replies, keeping
+     * the socket open. The server hides the keywords of the batch in parallel, so the cost of the round trip is
+     * shared by all of its requests.
+     *
+     * @param address  The address of the server.
+     * @param port     The port of the server.
+     * @param requests The strings and keywords, or keyword sets, to be hidden.
+     * @return The strings with the hidden keywords and the instance counters, in the order of the requests.
+     * @throws SocketTimeoutException If the server does not acknowledge the batch or does not reply in time.
+     * @throws IOException            If an I/O error occurs.
+     */
+    public List<AnonymizationResult> anonymizeBatch(InetAddress address, int port, List<AnonymizationRequest> requests)
+            throws IOException {
+        List<AnonymizationResult> results = UdpProtocol.decodeBatchReply(exchange(address, port,
+                UdpProtocol.encodeBatchRequest(requests)));
+        if (results == null || results.size() != requests.size()) {
+            throw new IOException("Invalid reply from the server");
+        }
+        return results;
+    }
 
-            // Handle the message segmentation if necessary when it exceeds the maximum packet size
-            if (strg.length() > chunkSize) {
-                // The main string message is too long and needs to be sent in several packets
-                sendToServerInSeveralPackets(port, strg, address, chunkSize, appendedData);
-            } else {
-                // The main string message is short enough to be sent in a single packet
-                sendToServerIn1Packet(hostName, port, strg);
+    /**
+     * Sends a message to the server and receives the message of its reply.
+     *
+     * @param address The address of the server.
+     * @param port    The port of the server.
+     * @param message The message of the request.
+     * @return The message of the reply.
+     * @throws IOException If an I/O error occurs or the server does not reply in time.
+     */
+    private ByteBuffer exchange(InetAddress address, int port, byte[] message) throws IOException {
+        int messageId = nextMessageId++;
+        if (!address.equals(sizedAddress)) {
+            segmentSize = UdpProtocol.datagramSize(address, maxDatagramSize) - UdpProtocol.HEADER_SIZE;
+            sizedAddress = address;
+        }
+        SelectiveRepeatSender request = new SelectiveRepeatSender(SelectiveRepeatSender.to(udpSocket, address, port),
+                messageId, message, segmentSize, windowSize, timer);
+        SelectiveRepeatReceiver reply = null;
+        long replyDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long ackDeadline = 0;
+
+        // Send the request, then receive the segments of the reply, which carries the same id.
+        // Segments of the request are sent again until they are acknowledged or the reply starts arriving.
+        request.sendWindow();
+        DatagramPacket packet = new DatagramPacket(receiveData, receiveData.length);
+        while (reply == null || !reply.isComplete()) {
+            long now = System.nanoTime();
+            long deadline = replyDeadline;
+            if (!request.isComplete()) {
+                deadline = Math.min(deadline, request.nextDeadline());
             }
-
-
-            // Repeat the same process for the keyword
-            byte[] lengthKeywordData = ByteBuffer.allocate(4).putInt(keyWord.length()).array();
-
-            DatagramPacket packetKeywordLength = new DatagramPacket(lengthKeywordData, lengthKeywordData.length, address, port);
-            udpSocket.send(packetKeywordLength);
-
-
-            StringBuilder appendedDataKeyword = new StringBuilder();
-
-
-            if (keyWord.length() > chunkSize) {
-                sendToServerInSeveralPackets(port, keyWord, address, chunkSize, appendedDataKeyword);
-            } else {
-
-                sendToServerIn1Packet(hostName, port, keyWord);
+            if (reply != null && reply.isAckPending()) {
+                deadline = Math.min(deadline, ackDeadline);
+            }
+            udpSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now) + 1));
+
+            try {
+                packet.setLength(receiveData.length);
+                udpSocket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                now = System.nanoTime();
+                if (reply != null && reply.isAckPending() && ackDeadline - now <= 0) {
+                    sendAck(reply, address, port);
+                }
+                if (!request.isComplete()) {
+                    request.retransmitExpired(now);
+                    if (request.hasFailed()) {
+                        throw new SocketTimeoutException("Message " + messageId + " was not acknowledged");
+                    }
+                }
+                if (replyDeadline - now <= 0) {
+                    throw new SocketTimeoutException("No reply to message " + messageId);
+                }
+                continue;
             }
 
+            ByteBuffer datagram = ByteBuffer.wrap(receiveData, 0, packet.getLength());
+            if (packet.getPort() != port || !packet.getAddress().equals(address)
+                    || datagram.remaining() < UdpProtocol.HEADER_SIZE) {
+                continue;
+            }
+            byte type = datagram.get();
+            byte flags = datagram.get();
+            if (datagram.getInt() != messageId) {
+                // a late datagram of an earlier request
+                continue;
+            }
+            int sequenceNumber = datagram.getInt();
+            int total = datagram.getInt();
+            int replySegmentSize = UdpProtocol.segmentSize(datagram);
+            datagram.position(UdpProtocol.HEADER_SIZE);
+            now = System.nanoTime();
+            replyDeadline = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+            if (type == UdpProtocol.ACK) {
+                request.onAck(sequenceNumber, datagram);
+                request.sendWindow();
+                continue;
+            }
+            if (type != UdpProtocol.DATA) {
+                continue;
+            }
 
-            // Receive and print the encrypted message from the server
-            DatagramPacket packet2 = new DatagramPacket(receiveData, receiveData.length);
-            udpSocket.receive(packet2);
-            String received = new String(packet2.getData(), 0, packet2.getLength());
-            System.out.println(received);
-
-            // Receive, decode, and print the instance counter from the server
-            receiveAndPrintInstanceCounter();
-
-            // Close the UDP socket and other resources on the client side
+            // the server only replies once the whole request has arrived
+            request.acknowledgeAll();
+            if (reply == null) {
+                reply = new SelectiveRepeatReceiver(messageId, total, replySegmentSize);
+            }
+            if (replySegmentSize != reply.getSegmentSize()) {
+                continue;
+            }
+            boolean ackWasPending = reply.isAckPending();
+            reply.accept(sequenceNumber, flags, datagram);
+            if (reply.isAckDue()) {
+                sendAck(reply, address, port);
+            } else if (!ackWasPending && reply.isAckPending()) {
+                ackDeadline = now + TimeUnit.MILLISECONDS.toNanos(SelectiveRepeatReceiver.DELAYED_ACK_MILLIS);
+            }
+        }
 
-            close();
+        return reply.takeMessage();
+    }
 
-        } catch (SocketTimeoutException e) {
-            System.err.println("Timeout reached: " + e.getMessage());
-        } catch (IOException e) {
-            System.err.println("I/O error: " + e.getMessage());
-        }
+    /**
+     * Acknowledges the segments of the reply received so far.
+     */
+    private void sendAck(SelectiveRepeatReceiver reply, InetAddress address, int port) throws IOException {
+        ByteBuffer ack = ByteBuffer.wrap(sendData);
+        reply.writeAck(ack);
+        udpSocket.send(new DatagramPacket(sendData, ack.position(), address, port));
     }
 
     /**
@@ -181,7 +336,10 @@ public class client_java_udp {
             System.exit(1);
         }
         // Create a new client object and send the data to the server
-        client_java_udp echoClient = new client_java_udp(10000);
+        // the window can be set with -Dudp.window=<segments> and the largest datagram with -Dudp.maxDatagram=<bytes>
+        client_java_udp echoClient = new client_java_udp(10000,
+                Integer.getInteger("udp.window", SelectiveRepeatSender.DEFAULT_WINDOW_SIZE),
+                Integer.getInteger("udp.maxDatagram", UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE));
 
         echoClient.sendData(hostName, port, userStr, keyWord);
         // Close the BufferedReader object and the client object after the process is complete
@@ -202,112 +360,15 @@ public class client_java_udp {
     }
 
     /**
-     * Attempts to send a keyword to the server in a single UDP packet. The method retries up to five times
-     * if acknowledgments (ACK) are not received from the server. If an ACK is received within the first three attempts,
-     * it breaks out of the loop. Otherwise, it terminates the process after five failed attempts.
-     *
-     * @param hostName The hostname or IP address of the server.
-     * @param port The port number on the server.
-     * @param keyWord The keyword to be sent to the server.
-     * @throws IOException If an I/O error occurs during the sending process.
-     */
-    private void sendToServerIn1Packet(String hostName, int port, String keyWord) throws IOException {
-        DatagramPacket packet;
-        // counter tries to send string
-        for (int counterTries = 0; counterTries < 5; counterTries++) {
-            if (counterTries < 3) {
-                // Sends the keyword to the server
-                sendData = keyWord.getBytes();
-                packet = new DatagramPacket(sendData, sendData.length, InetAddress.getByName(hostName), port);
-                udpSocket.send(packet);
-                // Receives ACK from the server
-                String receivedACK = receiveAck();
-                // If the ACK is received, break out of the loop
-                if (receivedACK.equals("ACK")) {
-                    break;
-                }
-            } else {
-                System.out.println("Failed to send string. Terminating!");
-                close();
-            }
-        }
-    }
-
-    /**
-     * Sends a string to the server in several packets if its size exceeds the maximum packet size.
-     * It breaks the string into segments and sends each segment individually, awaiting an acknowledgment (ACK) for each segment
-     * before proceeding. The process retries up to five times for each segment if ACKs are not received.
-     * @param port The port number on the server.
-     * @param strg The string to be sent to the server.
-     * @param address The InetAddress of the server.
-     * @param chunkSize The size of each data chunk to be sent in a single packet.
-     * @param appendedData A StringBuilder to accumulate the segments of the string that have been successfully sent.
-     * @throws IOException If an I/O error occurs during the segment sending process.
-     */
-    private void sendToServerInSeveralPackets(int port, String strg, InetAddress address, int chunkSize, StringBuilder appendedData) throws IOException {
-        for (int counterTries = 0; counterTries < 5; counterTries++) {
-            if (counterTries < 3) {
-                // Implementation details provided, focusing on segmenting the string, sending each segment,
-                // and handling retries for acknowledgment.
-                String receivedACK = null;
-
-                for (int i = 0; i < strg.length(); i += chunkSize) {
-                    int endIndex = Math.min(i + chunkSize, strg.length());
-                    String segment = strg.substring(i, endIndex);
-
-                    sendData = segment.getBytes();
-                    DatagramPacket segmentPacket = new DatagramPacket(sendData, sendData.length, address, port);
-                    udpSocket.send(segmentPacket);
-
-                    // Receives ACK from the server
-                    receivedACK = receiveAck();
-
-                    // Append the current segment to the StringBuilder
-                    appendedData.append(segment);
-
-                }
-                // If the ACK is received and the appended data matches the original string, break out of the loop
-                if (receivedACK.equals("ACK") & appendedData.toString().equals(strg)) {
-                    break;
-                }
-            } else {
-                // If the ACK is not received after five attempts, terminate the process
-                System.out.println("Failed to send string. Terminating!");
-                close();
-            }
-        }
-    }
-    /**
-     * Waits for and processes an acknowledgment (ACK) from the server. This method is used after sending
-     * each packet to ensure the server has received it. The method prints the received ACK for confirmation.
+     * Prints a specific message as many times as the keywords occurred.
+     * The server sends the instance counter as an integer value, one per keyword for a keyword set.
+     * It prints the predefined message ("Socket Programming") multiple times based on the sum of the counters.
      *
-     * @return The acknowledgment message received from the server, typically "ACK".
-     * @throws IOException If an I/O error occurs during the reception of the ACK.
+     * @param instanceCounter The number of instances of the keywords.
      */
-    public String receiveAck() throws IOException {
-        DatagramPacket ackPacket = new DatagramPacket(receiveData, receiveData.length);
-        udpSocket.receive(ackPacket);
-        String receivedACK = new String(ackPacket.getData(), 0, ackPacket.getLength());
-        System.out.println(receivedACK);
-        return receivedACK;
-    }
-
-    /**
-     * Receives the instance counter from the server and prints a specific message multiple times.
-     * This method assumes that the server sends the instance counter as an integer value.
-     * After receiving the instance counter, it prints the counter and a predefined message
-     * ("Socket Programming") multiple times based on the value of the counter.
-     * If an I/O error occurs during the reception, an IOException is thrown.
-     *
-     * @throws IOException If an I/O error occurs during the reception.
-     */
-    private void receiveAndPrintInstanceCounter() throws IOException {
-        DatagramPacket packet6 = new DatagramPacket(receiveData, receiveData.length);
-        udpSocket.receive(packet6);
-        int instanceCounter = byteArrayToInt(packet6.getData());
+    private void printInstanceCounter(int instanceCounter) {
         for (int i = 0; i < instanceCounter; i++) {
             System.out.println("Socket Programming");
         }
     }
 }
-
@@ -1,33 +1,126 @@
 package pt.ipp.isep.dei.examples.basic.domain;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A simple TCP/IP server that sends back lines as they are typed. The server port must be passed as a command-line argument.
  * The server replaces a specified keyword in the received string with 'X', hides it, and counts its occurrences.
  * The result, along with the modified string, is sent back to the client.
+ * Clients are served concurrently by a bounded pool of worker threads, and a client may send any number of
+ * requests over the same connection. A batch of requests sent at once is processed in parallel.
+ * A client may also choose the binary framing of {@link TcpBinaryProtocol} when it connects.
+ * A connection on which nothing arrives for -Dserver.tcp.idleTimeout milliseconds (60 s by default, 0 never) is
+ * closed, so idle clients do not hold on to the workers.
  */
 public class server_java_tcp {
 
     private ServerSocket serverSocket;
 
+    /**
+     * Default number of worker threads handling client connections.
+     */
+    public static final int DEFAULT_WORKER_THREADS = 200;
+
+    /**
+     * Default number of accepted connections that may wait for a free worker.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Default length of the operating system queue of connections not yet accepted.
+     */
+    public static final int DEFAULT_BACKLOG = 1024;
+
+    /**
+     * Default time after which a connection on which nothing arrives is closed.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000;
+
+    private static final int IDLE_TIMEOUT = Integer.getInteger("server.tcp.idleTimeout", DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+    /**
+     * First character of a line starting a streaming request. The rest of the line is the keyword, and the next line
+     * is the string, which is hidden and sent back as it arrives instead of after the whole line has been read.
+     * A string starting with this character can therefore only be sent in a batch or with the binary framing.
+     */
+    public static final char STREAM_MARKER = '\u0002';
+
+    /**
+     * First character of a line starting a batch. The rest of the line is the number of requests in the batch,
+     * which follow as string and keyword lines; the replies come back together, in the same order.
+     * Inside a batch, a string may start with this character; outside of one, it needs the binary framing.
+     */
+    public static final char BATCH_MARKER = '\u0003';
+
+    /**
+     * Maximum number of requests in a batch.
+     */
+    public static final int MAX_BATCH_SIZE = 100_000;
+
+    /**
+     * Maximum length in bytes of a line, and of the lines of a batch together, that {@link TcpSelectorServer} holds
+     * until they are complete; a connection sending more is closed.
+     */
+    public static final int MAX_LINE_LENGTH = TcpBinaryProtocol.MAX_FRAME_LENGTH;
+
+    private static final int STREAM_CHUNK_SIZE = 8192;
+
+    private final ThreadPoolExecutor workers;
+    private final ServerMetrics metrics = new ServerMetrics("tcp");
+    private final AsyncLogger log = AsyncLogger.getDefault();
+
     /**
      * Starts the EchoServer, binding it to the specified port.
      *
      * @param port The port bound to the server at localhost.
      */
     public server_java_tcp(int port){
+        this(port, DEFAULT_WORKER_THREADS, DEFAULT_QUEUE_CAPACITY, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * Starts the EchoServer, binding it to the specified port and creating the pool of workers that handle the clients.
+     * When every worker is busy and the queue is full, the accepting thread waits for room in the queue, so no
+     * new connections are accepted until a worker becomes free; pending clients wait in the backlog of the socket.
+     *
+     * @param port          The port bound to the server at localhost.
+     * @param workerThreads The number of threads handling client connections concurrently.
+     * @param queueCapacity The number of accepted connections that may wait for a free worker.
+     * @param backlog       The maximum length of the queue of incoming connections not yet accepted.
+     */
+    public server_java_tcp(int port, int workerThreads, int queueCapacity, int backlog){
         serverSocket = null;
 
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "tcp-worker-" + threadNumber.incrementAndGet()),
+                server_java_tcp::waitForRoom);
+
         try{
-            serverSocket = new ServerSocket(port);
+            serverSocket = new ServerSocket(port, backlog);
             System.out.println("Server listening on port: " + port);
 
         } catch (IOException e) {
@@ -37,92 +130,367 @@ public class server_java_tcp {
     }
 
     /**
-     * Waits for a client connection, receives a string and keyword, replaces the keyword with 'X',
-     * counts its occurrences, and sends the modified string and instance counter back to the client.
+     * Waits for client connections and hands each one to the pool of workers, until the server is shut down.
      */
     public void waitConnections(){
-        Socket clientSocket = null;
 
-        while(true){
+        while(!serverSocket.isClosed()){
             try {
-                clientSocket = serverSocket.accept();
+                Socket clientSocket = serverSocket.accept();
+                clientSocket.setSoTimeout(IDLE_TIMEOUT);
 
-                System.out.println("Connected to " + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
-
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+                try {
+                    workers.execute(() -> handleClient(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                System.err.println("Server exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
 
-                String strg= in.readLine();
-                String keyWord= in.readLine();
+    /**
+     * Queues a connection once a worker takes the next one, rather than handling it on the accepting thread, which
+     * an idle client could then keep from accepting anyone else.
+     *
+     * @param task     The handling of the connection.
+     * @param executor The pool of workers.
+     */
+    private static void waitForRoom(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("The server is shut down");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    }
 
-                //while ((inputLine = in.readLine()) != null) {
+    /**
+     * Receives strings and keywords from a client, replaces each keyword with 'X',
+     * counts its occurrences, and sends the modified string and instance counter back to the client.
+     * The connection is kept open for further requests until the client closes it. Replies are sent in the order
+     * of the requests, and are only flushed when no further request is waiting, so pipelined requests share writes.
+     *
+     * @param clientSocket The socket connected to the client.
+     */
+    private void handleClient(Socket clientSocket){
+        metrics.connectionOpened();
+        log.debug("connection.open", "client", clientSocket.getRemoteSocketAddress(), null, null);
+        try {
+            InputStream input = new BufferedInputStream(metrics.countingInput(clientSocket.getInputStream()));
+            OutputStream output = metrics.countingOutput(clientSocket.getOutputStream());
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+            if (first == TcpBinaryProtocol.PREAMBLE) {
+                handleBinary(new DataInputStream(input), new DataOutputStream(new BufferedOutputStream(output)));
+                clientSocket.close();
+                return;
+            }
 
+            BufferedReader in = new BufferedReader(new InputStreamReader(input));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)));
 
-                // replace keyword with 'X' repeated
-                String resultString = replaceWord(strg,keyWord);
+            while (awaitRequest(in)) {
+                long start = System.nanoTime();
+                String strg = in.readLine();
+                if (!strg.isEmpty() && strg.charAt(0) == STREAM_MARKER) {
+                    handleStream(in, out, strg.substring(1));
+                    continue;
+                }
+                if (!strg.isEmpty() && strg.charAt(0) == BATCH_MARKER) {
+                    handleBatch(in, out, parseBatchSize(strg), start);
+                    continue;
+                }
+                checkLine(strg);
 
-                //check number of instances of keyword in user string
-                Pattern pattern = Pattern.compile("\\b" + Pattern.quote(String.valueOf(keyWord)) + "\\b", Pattern.CASE_INSENSITIVE);
-                Matcher matcher = pattern.matcher(String.valueOf(strg).toLowerCase());
-                int instanceCounter = 0;
-                while (matcher.find()) {
-                    instanceCounter++;
+                String keyWord = in.readLine();
+                if (keyWord == null) {
+                    break;
                 }
-                //System.err.println("instanceCounter> " + instanceCounter);
-                //return instanceCounter;
+                long parsed = System.nanoTime();
+                metrics.parsed(parsed - start);
+
+                // replace keyword with 'X' repeated and check number of instances of keyword in user string
+                AnonymizationEngine engine = AnonymizationEngine.forCurrentThread();
+                int instances = engine.process(strg, keyWord);
+                long matched = System.nanoTime();
+                metrics.requestsMatched(1, instances, matched - parsed);
 
                 // send string to client
-                //out.println(concatenatedString);
-                out.println(resultString);
+                out.println(engine.getMaskedStrg());
 
-                // send instance counter to client
-                out.println(instanceCounter);
+                // send instance counter to client, one per keyword for a keyword set
+                out.println(AnonymizationResult.formatInstanceCounters(engine.getInstanceCounters()));
 
-                System.out.println("Client exiting...");
-                in.close();
-                out.close();
-                clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Server exception: " + e.getMessage());
-                e.printStackTrace();
+                if (!in.ready()) {
+                    out.flush();
+                }
+                metrics.sent(System.nanoTime() - matched);
             }
+            out.flush();
+
+            in.close();
+            out.close();
+            clientSocket.close();
+        } catch (SocketTimeoutException e) {
+            log.debug("connection.idle", "client", clientSocket.getRemoteSocketAddress(), null, null);
+        } catch (IOException e) {
+            log.warn("connection.error", "client", clientSocket.getRemoteSocketAddress(), "error", e);
+        } finally {
+            closeQuietly(clientSocket);
+            metrics.connectionClosed();
+            log.debug("connection.close", "client", clientSocket.getRemoteSocketAddress(), null, null);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // the connection is being dropped anyway
         }
     }
 
     /**
-     * Anonymizes the input string containing the keyword, by replacing each character with 'X'.
+     * Serves a client that asked for the binary framing of {@link TcpBinaryProtocol}: answers the version, then reads
+     * each request or batch frame by the lengths of its fields and sends back one reply frame per request.
+     * Replies are flushed when no further frame is waiting, as in the line protocol.
      *
-     * @param keyword The input string to be anonymized, containing the keyword.
-     * @return A string with the same length as the input, where each character is replaced with 'X'.
+     * @param in  The stream from the client, positioned at the preamble.
+     * @param out The stream to the client.
+     * @throws IOException If an I/O error occurs or a frame is invalid.
      */
-    private String anonymizationData(String keyword) {
+    private void handleBinary(DataInputStream in, DataOutputStream out) throws IOException {
+        in.readByte();
+        int version = in.readUnsignedByte();
+        if (version != TcpBinaryProtocol.VERSION) {
+            out.writeByte(0);
+            out.flush();
+            throw new IOException("Unsupported binary protocol version: " + version);
+        }
+        out.writeByte(TcpBinaryProtocol.VERSION);
+        out.flush();
+
+        int type;
+        while ((type = in.read()) >= 0) {
+            long start = System.nanoTime();
+            if (type == TcpBinaryProtocol.BATCH) {
+                List<AnonymizationRequest> requests = TcpBinaryProtocol.readBatch(in);
+                long parsed = System.nanoTime();
+                metrics.parsed(parsed - start);
 
-        char[] keywordCharsArray = keyword.toCharArray();
-        char[] hiddenKeyword = new char[keywordCharsArray.length];
+                List<AnonymizationResult> results = BatchAnonymizer.anonymizeAll(requests);
+                long matched = System.nanoTime();
+                metrics.requestsMatched(requests.size(), ServerMetrics.sum(results), matched - parsed);
 
-        for (int i = 0; i < keywordCharsArray.length; i++) {
-            keywordCharsArray[i] = 'X';
-            hiddenKeyword[i] = keywordCharsArray[i];
+                for (AnonymizationResult result : results) {
+                    TcpBinaryProtocol.writeReply(out, result);
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+                metrics.sent(System.nanoTime() - matched);
+            } else if (type == TcpBinaryProtocol.REQUEST) {
+                AnonymizationRequest request = TcpBinaryProtocol.readRequest(in);
+                long parsed = System.nanoTime();
+                metrics.parsed(parsed - start);
+
+                AnonymizationEngine engine = AnonymizationEngine.forCurrentThread();
+                int instances = engine.process(request.getStrg(), request.getKeyWord());
+                long matched = System.nanoTime();
+                metrics.requestsMatched(1, instances, matched - parsed);
+
+                TcpBinaryProtocol.writeReply(out, engine.getMaskedStrg(), engine.getInstanceCounters());
+                if (in.available() == 0) {
+                    out.flush();
+                }
+                metrics.sent(System.nanoTime() - matched);
+            } else {
+                throw new IOException("Invalid frame type: " + type);
+            }
         }
-        return new String(hiddenKeyword);
+        out.flush();
+    }
+
+    /**
+     * Waits until the next request starts to arrive, so its parse time does not include the time the connection
+     * was idle.
+     *
+     * @param in The reader of the client.
+     * @return Whether a request is arriving, false when the client closed the connection.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static boolean awaitRequest(BufferedReader in) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        return first >= 0;
     }
 
+    /**
+     * Hides the keyword in a string read in chunks, sending each chunk back as soon as it is hidden, so strings of
+     * any length are handled with the same memory. The string ends at the next line feed; a carriage return right
+     * before it is dropped. The hidden string is followed by a line terminator and the instance counter line.
+     *
+     * @param in      The reader of the client, positioned at the start of the string.
+     * @param out     The writer to the client.
+     * @param keyWord The keyword to be hidden, or a keyword set.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleStream(BufferedReader in, PrintWriter out, String keyWord) throws IOException {
+        long start = System.nanoTime();
+        StreamingAnonymizer anonymizer = new StreamingAnonymizer(keyWord);
+        char[] chunk = new char[STREAM_CHUNK_SIZE];
+        boolean carriageReturn = false;
+
+        while (true) {
+            // the chunk may go past the end of the string, into the next request
+            in.mark(chunk.length);
+            int read = in.read(chunk, 0, chunk.length);
+            if (read < 0) {
+                break;
+            }
+            int end = -1;
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+
+            // a carriage return ending the previous chunk belongs to the string unless a line feed follows
+            if (carriageReturn && end != 0) {
+                anonymizer.write(new char[]{'\r'}, 0, 1, out);
+            }
+            int length = end >= 0 ? end : read;
+            carriageReturn = false;
+            if (length > 0 && chunk[length - 1] == '\r') {
+                length--;
+                carriageReturn = end < 0;
+            }
+            anonymizer.write(chunk, 0, length, out);
+
+            if (end >= 0) {
+                in.reset();
+                in.skip(end + 1);
+                break;
+            }
+            out.flush();
+        }
+
+        int[] instanceCounters = anonymizer.finish(out);
+        out.println();
+        out.println(AnonymizationResult.formatInstanceCounters(instanceCounters));
+        out.flush();
+        metrics.requestsMatched(1, ServerMetrics.sum(instanceCounters), System.nanoTime() - start);
+    }
+
+    /**
+     * Reads the requests of a batch, hides their keywords in parallel and sends the replies back in the order of
+     * the requests.
+     *
+     * @param in    The reader of the client, positioned after the line starting the batch.
+     * @param out   The writer to the client.
+     * @param size  The number of requests in the batch.
+     * @param start The time the batch started to arrive, from System.nanoTime.
+     * @throws IOException If an I/O error occurs or the connection ends in the middle of the batch.
+     */
+    private void handleBatch(BufferedReader in, PrintWriter out, int size, long start) throws IOException {
+        List<AnonymizationRequest> requests = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String strg = in.readLine();
+            String keyWord = in.readLine();
+            if (strg == null || keyWord == null) {
+                throw new EOFException("Connection closed in the middle of a batch");
+            }
+            requests.add(new AnonymizationRequest(strg, keyWord));
+        }
+        long parsed = System.nanoTime();
+        metrics.parsed(parsed - start);
+
+        List<AnonymizationResult> results = BatchAnonymizer.anonymizeAll(requests);
+        long matched = System.nanoTime();
+        metrics.requestsMatched(size, ServerMetrics.sum(results), matched - parsed);
+
+        for (AnonymizationResult result : results) {
+            out.println(result.getMaskedStrg());
+            out.println(AnonymizationResult.formatInstanceCounters(result.getInstanceCounters()));
+        }
+        if (!in.ready()) {
+            out.flush();
+        }
+        metrics.sent(System.nanoTime() - matched);
+    }
 
+    /**
+     * Refuses the string line of a request that starts with {@link TcpBinaryProtocol#PREAMBLE}, which the line
+     * protocol reserves, rather than hiding a string the client may have meant as the start of the binary framing.
+     *
+     * @param line The string line of a request, outside of a batch.
+     * @throws IOException If the line starts with the preamble.
+     */
+    static void checkLine(String line) throws IOException {
+        if (!line.isEmpty() && line.charAt(0) == TcpBinaryProtocol.PREAMBLE) {
+            throw new IOException("Invalid request: a line starts with NUL");
+        }
+    }
 
     /**
-     * Replaces occurrences of a specified word (keyword) in a given sentence with a hidden representation.
-     * The replacement is case-insensitive.
+     * Reads the number of requests of a batch from the line starting it.
      *
-     * @param str     The original sentence in which the replacement will be performed.
-     * @param keyword The keyword to be replaced in the original sentence.
-     * @return A new string with occurrences of the keyword replaced by a hidden representation.
+     * @param line The line, starting with {@link #BATCH_MARKER}.
+     * @return The number of requests in the batch.
+     * @throws IOException If the number is missing, negative or larger than {@link #MAX_BATCH_SIZE}.
      */
-    private String replaceWord(String str, String keyword) {
+    static int parseBatchSize(String line) throws IOException {
+        try {
+            int size = Integer.parseInt(line.substring(1).trim());
+            if (size >= 0 && size <= MAX_BATCH_SIZE) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException("Invalid batch size: " + line.substring(1));
+    }
 
-        String newStr = anonymizationData(keyword);
+    /**
+     * @return The metrics of the server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
 
-        // Use a case-insensitive regular expression for replacement
-        return str.replaceAll("(?i)" + Pattern.quote(keyword), newStr);
+    /**
+     * Stops accepting connections and waits for the workers to finish the clients already accepted.
+     */
+    public void shutdown(){
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Server exception: " + e.getMessage());
+        }
+
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        metrics.unpublish();
+        System.out.println("Server stopped");
     }
 
     /**
@@ -138,29 +506,35 @@ public class server_java_tcp {
 
         int port = Integer.parseInt(args[0]);
 
-        server_java_tcp echoServer = new server_java_tcp(port);
+        int backlog = Integer.getInteger("server.tcp.backlog", DEFAULT_BACKLOG);
 
-        echoServer.waitConnections();
-    }
+        // the metrics are published through JMX, and as text at http://localhost:<port>/metrics
+        // with -Dserver.metrics.port=<port>
+        int metricsPort = Integer.getInteger("server.metrics.port", 0);
 
-    /**
-     * Checks the number of instances of the keyword in the user string.
-     * Matches the keyword (pattern) in the userString using a case-insensitive regular expression.
-     *
-     * @param strgKeywordReceived The keyword to be counted within the string.
-     * @param strgReceived        The string in which occurrences of the keyword are counted.
-     * @return The number of instances of the specified keyword in the given string.
-     * @link https://www.w3schools.com/java/java_regex.asp
-     */
-    /*private static int getInstanceCounter(String strgKeywordReceived, String strgReceived) {
-        Pattern pattern = Pattern.compile("\\b" + Pattern.quote(String.valueOf(strgKeywordReceived)) + "\\b", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(String.valueOf(strgReceived).toLowerCase());
-        int instanceCounter = 0;
-        while (matcher.find()) {
-            instanceCounter++;
-        }
-        System.err.println("instanceCounter> " + instanceCounter);
-        return instanceCounter;
+        // -Dserver.tcp.mode=nio serves the clients from selector event loops instead of one thread per client
+        if ("nio".equals(System.getProperty("server.tcp.mode"))) {
+            int selectorThreads = Integer.getInteger("server.tcp.selectors", Runtime.getRuntime().availableProcessors());
+
+            TcpSelectorServer selectorServer = new TcpSelectorServer(port, selectorThreads, backlog);
+            selectorServer.getMetrics().publish(metricsPort);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(selectorServer::shutdown));
+
+            selectorServer.waitConnections();
+            return;
+        }
+
+        // the pool can be tuned with -Dserver.tcp.workers=<n> -Dserver.tcp.queue=<n>,
+        // and idle connections closed after -Dserver.tcp.idleTimeout=<milliseconds>
+        int workerThreads = Integer.getInteger("server.tcp.workers", DEFAULT_WORKER_THREADS);
+        int queueCapacity = Integer.getInteger("server.tcp.queue", DEFAULT_QUEUE_CAPACITY);
+
+        server_java_tcp echoServer = new server_java_tcp(port, workerThreads, queueCapacity, backlog);
+        echoServer.getMetrics().publish(metricsPort);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(echoServer::shutdown));
+
+        echoServer.waitConnections();
     }
-     */
 }
\ No newline at end of file
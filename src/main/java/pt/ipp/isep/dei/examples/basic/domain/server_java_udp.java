@@ -1,15 +1,28 @@
 package pt.ipp.isep.dei.examples.basic.domain;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -20,15 +33,94 @@ import java.util.regex.Pattern;
  * This class provides methods for creating a UDP server, waiting for client packets,
  * and handling the communication by receiving and processing data in segments.
  *
- * The server supports the reception of two separate data segments: the main string and a keyword.
+ * The client sends the main string and the keyword as a single message, split into numbered segments
+ * (see {@link UdpProtocol}).
  * It replaces occurrences of the keyword in the main string with a hidden representation before sending it back to the client.
  * Additionally, the server counts the number of instances of the keyword in the main string and sends the count as part of the response.
+ *
+ * Each request being received has its own session, keyed by the address and port of the client and the id of the
+ * message, so the segments of concurrent clients do not mix. A single thread receives every datagram, and the
+ * complete requests are processed by a bounded pool of worker threads.
+ *
+ * The buffers the requests are reassembled in, until they are decoded, take at most
+ * -Dserver.udp.maxReassemblyBytes bytes together (256 MiB by default); a segment that does not fit is dropped, and
+ * counted, as if it had been lost.
+ *
+ * The requests sent in several segments and still being received are limited too, since each one takes a session
+ * for the session timeout: at most -Dserver.udp.maxSessionsPerClient from a client address (64 by default) and
+ * -Dserver.udp.maxSessions from all the clients (65536 by default). The first segment of a request beyond either
+ * limit is refused and counted, and the client sends it again. A request sent in a single datagram is never
+ * refused, as it is complete as soon as it arrives.
+ *
+ * Once its reply has been acknowledged or given up, a session drops its buffers and its reply, and is only kept as a
+ * small marker, so a late duplicate of the request is not processed again. The markers count towards
+ * -Dserver.udp.maxSessions too: once the sessions outnumber it, the markers of the oldest replies are forgotten
+ * before their timeout. A request handed to a worker, or whose reply is being sent, keeps its session.
  */
 public class server_java_udp {
 
-    private DatagramSocket udpSocket;
-    private byte[] receiveData = new byte[256];
-    private byte[] sendData = new byte[256];
+    /**
+     * Default number of worker threads processing complete requests.
+     */
+    public static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default number of complete requests that may wait for a free worker.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Default time after which a session that received no datagram is discarded.
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * Default number of requests in several segments that may be received at once, over all the clients.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 65536;
+
+    /**
+     * Default number of requests in several segments that may be received at once from a client address.
+     */
+    public static final int DEFAULT_MAX_SESSIONS_PER_CLIENT = 64;
+
+    private static final int MAX_SESSIONS = Integer.getInteger("server.udp.maxSessions", DEFAULT_MAX_SESSIONS);
+    private static final int MAX_SESSIONS_PER_CLIENT = Integer.getInteger("server.udp.maxSessionsPerClient",
+            DEFAULT_MAX_SESSIONS_PER_CLIENT);
+
+    // how often the idle sessions are looked for, also when no datagram arrives
+    private static final int SWEEP_INTERVAL_MILLIS = 1000;
+
+    // how often the replies being sent are looked for lost segments
+    private static final int RETRANSMIT_INTERVAL_MILLIS = (int) RetransmissionTimer.MIN_RTO_MILLIS;
+
+    // large enough to absorb the bursts of segments of many windows while the receiving thread is busy
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(UdpProtocol.MAX_DATAGRAM_SIZE);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(SelectiveRepeatReceiver.MAX_ACK_SIZE);
+    private final DirectBufferPool bufferPool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAX_POOLED_BYTES,
+            Long.getLong("server.udp.maxReassemblyBytes", DirectBufferPool.DEFAULT_MAX_ACQUIRED_BYTES));
+
+    private final ThreadPoolExecutor workers;
+    private final long sessionTimeout;
+    private final int windowSize;
+    private final int maxSegmentSize;
+    private final Map<SessionKey, Session> sessions = new HashMap<>();
+    private final SessionKey lookupKey = new SessionKey(null, 0);
+    // the requests in several segments being received, by client address and in all
+    private final Map<InetAddress, int[]> receivingPerClient = new HashMap<>();
+    private int receiving;
+    private final Set<Session> activeReplies = ConcurrentHashMap.newKeySet();
+    // the sessions whose reply is done, oldest first
+    private final ArrayDeque<Session> doneSessions = new ArrayDeque<>();
+    private final List<Session> delayedAcks = new ArrayList<>();
+    private final ServerMetrics metrics = new ServerMetrics("udp");
+    private final AsyncLogger log = AsyncLogger.getDefault();
+    private final boolean byteMatching = Utf8Anonymizer.isSupported() && ResponseCache.shared() == null
+            && !log.logsPayloads();
 
     /**
      * Constructs a UDP server and binds it to the specified port.
@@ -36,14 +128,47 @@ public class server_java_udp {
      * @param port The UDP port to which the server is bound.
      */
     public server_java_udp(int port) {
-        udpSocket = null;
+        this(port, DEFAULT_WORKER_THREADS, DEFAULT_QUEUE_CAPACITY, DEFAULT_SESSION_TIMEOUT_MILLIS,
+                SelectiveRepeatSender.DEFAULT_WINDOW_SIZE, UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * Constructs a UDP server, binds it to the specified port and creates the pool of workers that process the
+     * requests. When every worker is busy and the queue is full, the receiving thread processes the request itself,
+     * and the datagrams arriving meanwhile wait in the buffer of the socket.
+     *
+     * @param port                 The UDP port to which the server is bound.
+     * @param workerThreads        The number of threads processing requests concurrently.
+     * @param queueCapacity        The number of complete requests that may wait for a free worker.
+     * @param sessionTimeoutMillis The time after which a session that received no datagram is discarded.
+     * @param windowSize           The number of segments of a reply sent ahead of their acknowledgments.
+     * @param maxDatagramSize      The largest datagram of a reply; replies use the segment size of their request
+     *                             when it is smaller.
+     */
+    public server_java_udp(int port, int workerThreads, int queueCapacity, int sessionTimeoutMillis, int windowSize,
+                           int maxDatagramSize) {
+        channel = null;
+        sessionTimeout = TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis);
+        this.windowSize = windowSize;
+        this.maxSegmentSize = Math.min(maxDatagramSize, UdpProtocol.MAX_DATAGRAM_SIZE) - UdpProtocol.HEADER_SIZE;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "udp-worker-" + threadNumber.incrementAndGet()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
 
         try {
-            //The UDP server creates a DatagramSocket on port x,
+            //The UDP server creates a DatagramChannel on port x,
             //indicating that it's ready to listen for incoming datagrams.
-            this.udpSocket = new DatagramSocket(port);
-
-            System.out.println("Created UDP socket at " + udpSocket.getLocalPort());
+            this.channel = DatagramChannel.open();
+            this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            this.channel.bind(new InetSocketAddress(port));
+            this.channel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.channel.register(selector, SelectionKey.OP_READ);
+
+            System.out.println("Created UDP socket at " + channel.socket().getLocalPort());
         } catch (IOException e) {
             System.err.println("Server exception: " + e.getMessage());
             e.printStackTrace();
@@ -53,178 +178,427 @@ public class server_java_udp {
 
     /**
      * Waits for client data, processes it, and sends back responses.
-     * This method enters an infinite loop where the server continuously listens for incoming datagrams,
-     * processes the received data in segments, and sends appropriate responses back to the clients.
+     * This method enters a loop where the server continuously listens for incoming datagrams,
+     * reassembles the segments of each request and sends appropriate responses back to the clients,
+     * until the server is shut down.
      *
-     * The method handles the reception of two separate data segments: the main string and a keyword.
-     * It replaces occurrences of the keyword in the main string with a hidden representation before sending it back to the client.
-     * Additionally, the server counts the number of instances of the keyword in the main string and sends the count as part of the response.
+     * Every datagram carries the id of its message and its sequence number, so segments may arrive in any order
+     * and only the lost ones are sent again by the client. One acknowledgment covers every segment received so far;
+     * it is sent at once for the last segment of a burst, as flagged by the client, or for a segment out of order,
+     * and otherwise delayed for a few milliseconds. A request sent in a single datagram is acknowledged by its
+     * reply. When a request is complete, it is handed to a worker, which starts sending the reply
+     * the same way; this thread then receives the acknowledgments of the reply and sends again its lost segments.
+     * A session is kept until it has been idle for the session timeout, so the segments the client sends again
+     * are still acknowledged; once its reply is done, only a marker is kept, until the timeout, which ignores the
+     * segments of the request that still arrive.
+     *
+     * Datagrams are received into a single direct buffer, and their payload is copied straight to its place in the
+     * buffer of the message, taken from a pool and grown as the segments arrive, so receiving a segment allocates
+     * nothing. The message is decoded once, when it is complete.
      *
-     * If a timeout occurs during the reception, the server terminates with an error message.
      * If an I/O error occurs during the process, an error message is printed.
      */
     public void waitPackets() {
 
-        InetAddress remoteHostName = null;
-        int remotePort = 0;
+        long lastSweep = System.nanoTime();
+        long lastRetransmit = lastSweep;
 
-        //The server enters an infinite loop where it continuously listens for incoming datagrams.
+        //The server enters a loop where it continuously listens for incoming datagrams.
 
-        while (true) {
+        while (channel.isOpen()) {
 
             try {
 
-                //receive length
-                DatagramPacket packet3 = new DatagramPacket(receiveData, receiveData.length);
-                this.udpSocket.receive(packet3);
-                int packet3Length = byteArrayToInt(packet3.getData());
-                //The receive method of the DatagramSocket waits until a datagram packet is received.
-                //The received data is stored in the receiveData byte array.
-
-                int timeOut = 500;
-
-                // Receive the string in segments
-                StringBuilder strgReceived = new StringBuilder();
-                int receivedLength = 0;
-
-                Map<Integer, String> segmentsMap = new TreeMap<>(); // TreeMap to maintain order
-
-                int sequenceNumber = 0;
-
-                while (receivedLength < packet3Length) {
-                    DatagramPacket packet = new DatagramPacket(receiveData, receiveData.length);
-                    this.udpSocket.receive(packet);
-
-                    // Retrieve details from the client
-                    remoteHostName = packet.getAddress();
-                    remotePort = packet.getPort();
-
-                    // Byes to string conversion
-                    String segment = new String(packet.getData(), 0, packet.getLength());
-
-
-                    // Saves the segment in the map with the sequence number as the key
-                    segmentsMap.put(sequenceNumber, segment);
-                    receivedLength += segment.length();
-
-                    // Send ACK for the segment
-                    sendAck(remoteHostName, remotePort);
-
-                    sequenceNumber++;
+                // wake up often enough to resend the lost segments of the replies and send the delayed acknowledgments
+                long timeout = activeReplies.isEmpty() ? SWEEP_INTERVAL_MILLIS : RETRANSMIT_INTERVAL_MILLIS;
+                if (!delayedAcks.isEmpty()) {
+                    timeout = Math.min(timeout, SelectiveRepeatReceiver.DELAYED_ACK_MILLIS);
                 }
+                selector.select(timeout);
+                selector.selectedKeys().clear();
 
-                // Merges the segments in the map into a single string in the correct order
-                for (String segment : segmentsMap.values()) {
-                    strgReceived.append(segment);
+                long now = System.nanoTime();
+                if (now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS)) {
+                    expireSessions(now);
+                    lastSweep = now;
+                }
+                if (now - lastRetransmit >= TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_INTERVAL_MILLIS)) {
+                    retransmitReplies(now);
+                    lastRetransmit = now;
                 }
 
+                // receive every datagram waiting in the buffer of the socket
+                SocketAddress client;
+                while ((client = channel.receive(receiveBuffer.clear())) != null) {
+                    receiveBuffer.flip();
+                    metrics.bytesReceived(receiveBuffer.remaining());
+                    handleDatagram((InetSocketAddress) client, receiveBuffer, now);
+                }
+                sendDelayedAcks(System.nanoTime());
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                break;
+            } catch (IllegalArgumentException e) {
+                log.warn("datagram.invalid", "error", e, null, null);
+            } catch (IOException e) {
+                log.warn("datagram.error", "error", e, null, null);
+            }
+        }
+    }
 
-                //-----------------------------------------------------------------------------------------------
-                //KEYWORD
-                //receive length keyword
-                DatagramPacket packet4 = new DatagramPacket(receiveData, receiveData.length);
-                this.udpSocket.receive(packet4);
-                int packet4Length = byteArrayToInt(packet4.getData());
-
-                int timeOutKeyword = 500;
-
-                // Receive the string in segments
-                StringBuilder strgKeywordReceived = new StringBuilder();
-                int receivedKeywordLength = 0;
-
-                Map<Integer, String> segmentsKeywordMap = new TreeMap<>(); // TreeMap to maintain order
-
-                int sequenceNumberKeyword = 0;
-
-                while (receivedKeywordLength < packet4Length) {
-                    DatagramPacket packet2 = new DatagramPacket(receiveData, receiveData.length);
-                    this.udpSocket.receive(packet2);
+    /**
+     * Handles a datagram: a segment of a request, which is stored and acknowledged, or the acknowledgment of the
+     * segments of a reply.
+     *
+     * @param client   The address and port of the client.
+     * @param datagram The datagram, from the position to the limit of the buffer.
+     * @param now      The time the datagram was received, from System.nanoTime.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleDatagram(InetSocketAddress client, ByteBuffer datagram, long now) throws IOException {
+        if (datagram.remaining() < UdpProtocol.HEADER_SIZE) {
+            return;
+        }
+        byte type = datagram.get();
+        byte flags = datagram.get();
+        int messageId = datagram.getInt();
+        int sequenceNumber = datagram.getInt();
+        int total = datagram.getInt();
+        int segmentSize = UdpProtocol.segmentSize(datagram);
+        datagram.position(UdpProtocol.HEADER_SIZE);
+
+        lookupKey.set(client, messageId);
+        Session session = sessions.get(lookupKey);
+
+        if (type == UdpProtocol.ACK) {
+            // acknowledgment of the segments of a reply
+            if (session != null && session.reply != null) {
+                session.lastActivity = now;
+                session.reply.onAck(sequenceNumber, datagram);
+                session.reply.sendWindow();
+                if (session.reply.isDone()) {
+                    replyDone(session, now);
+                }
+            }
+            return;
+        }
+        if (type != UdpProtocol.DATA || (session != null && session.done)) {
+            // a late segment of a request that was already answered
+            return;
+        }
 
-                    // Extract client details
-                    remoteHostName = packet2.getAddress();
-                    remotePort = packet2.getPort();
+        if (session == null) {
+            boolean multiSegment = total > 1;
+            if (multiSegment && !startReceiving(client.getAddress())) {
+                metrics.sessionRejected();
+                return;
+            }
+            SessionKey key = new SessionKey(client, messageId);
+            session = new Session(key, new SelectiveRepeatReceiver(messageId, total, segmentSize, bufferPool), client);
+            session.receiving = multiSegment;
+            sessions.put(key, session);
+            metrics.sessionOpened();
+        }
+        session.lastActivity = now;
+        SelectiveRepeatReceiver receiver = session.receiver;
+        if (segmentSize != receiver.getSegmentSize()) {
+            return;
+        }
+        if (!receiver.reserve(sequenceNumber)) {
+            // the client sends it again once the requests being received make room
+            metrics.segmentDropped();
+            return;
+        }
 
-                    // Convert Bytes to String
-                    String segmentKeyword = new String(packet2.getData(), 0, packet2.getLength());
+        // Saves the segment at its place in the message and acknowledges it, now or together with the next ones
+        boolean newSegment = receiver.accept(sequenceNumber, flags, datagram);
+        boolean requestComplete = newSegment && receiver.isComplete();
+        if (requestComplete && total == 1) {
+            // the reply acknowledges a request sent in a single datagram
+            receiver.cancelAck();
+        }
+        if (receiver.isAckDue()) {
+            sendAck(receiver, client);
+        } else if (receiver.isAckPending() && !session.ackScheduled) {
+            session.ackScheduled = true;
+            session.ackDeadline = now + TimeUnit.MILLISECONDS.toNanos(SelectiveRepeatReceiver.DELAYED_ACK_MILLIS);
+            delayedAcks.add(session);
+        }
 
+        if (requestComplete) {
+            stopReceiving(session);
+            session.processing = true;
+            ByteBuffer message = receiver.takeMessage();
+            Session completeSession = session;
+            workers.execute(() -> handleRequest(completeSession, messageId, message, client));
+        }
+    }
 
-                    // Store the segment in the map based on the sequence number
-                    segmentsKeywordMap.put(sequenceNumberKeyword, segmentKeyword);
-                    receivedKeywordLength += segmentKeyword.length();
+    /**
+     * Counts a request in several segments as being received, unless its client, or all the clients, already
+     * reached their limit.
+     *
+     * @param address The address of the client.
+     * @return False if the request must be refused.
+     */
+    private boolean startReceiving(InetAddress address) {
+        if (receiving >= MAX_SESSIONS) {
+            return false;
+        }
+        int[] count = receivingPerClient.computeIfAbsent(address, key -> new int[1]);
+        if (count[0] >= MAX_SESSIONS_PER_CLIENT) {
+            return false;
+        }
+        count[0]++;
+        receiving++;
+        return true;
+    }
 
-                    // Send ACK for the segment
-                    sendAck(remoteHostName, remotePort);
+    /**
+     * Stops counting a request as being received, once it is complete or discarded.
+     *
+     * @param session The session of the request.
+     */
+    private void stopReceiving(Session session) {
+        if (!session.receiving) {
+            return;
+        }
+        session.receiving = false;
+        receiving--;
+        InetAddress address = session.client.getAddress();
+        int[] count = receivingPerClient.get(address);
+        if (--count[0] == 0) {
+            receivingPerClient.remove(address);
+        }
+    }
 
-                    sequenceNumberKeyword++;
-                }
-                // Concatenate segments in order to reconstruct the original string
-                for (String segmentKeyword : segmentsKeywordMap.values()) {
-                    strgKeywordReceived.append(segmentKeyword);
+    /**
+     * Sends the acknowledgments that were delayed for longer than {@link SelectiveRepeatReceiver#DELAYED_ACK_MILLIS},
+     * unless they were sent meanwhile along with a later segment.
+     *
+     * @param now The current time, from System.nanoTime.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void sendDelayedAcks(long now) throws IOException {
+        Iterator<Session> iterator = delayedAcks.iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (session.ackDeadline - now <= 0) {
+                iterator.remove();
+                session.ackScheduled = false;
+                if (!session.done && session.receiver.isAckPending()) {
+                    sendAck(session.receiver, session.client);
                 }
+            }
+        }
+    }
 
+    /**
+     * Hides the keyword of a complete request, or of every request of a batch, and starts sending the reply to the
+     * client, in segments no larger than those of the request.
+     *
+     * @param session   The session of the request, which keeps the reply until it is acknowledged.
+     * @param messageId The id of the request.
+     * @param message   The request, in a buffer of the pool, which is given back once it has been decoded.
+     * @param client    The address and port of the client.
+     */
+    private void handleRequest(Session session, int messageId, ByteBuffer message, InetSocketAddress client) {
+        try {
+            answer(session, messageId, message, client);
+        } finally {
+            session.processing = false;
+        }
+    }
 
-                //check number of instances of keyword in user string
-                int instanceCounter = getInstanceCounter(strgKeywordReceived, strgReceived);
-
-
-                // send string with hidden keyword
-                System.out.println(strgReceived);
-                String reply2 = replaceWord(String.valueOf(strgReceived), String.valueOf(strgKeywordReceived));
-
-                // convert a string where the message is stored in array of bytes
-                sendData = reply2.getBytes();
-                // DatagramPacket object that sends data to the client. To do this, it needs the message, the number of bytes, the hostName and the client port.
-                DatagramPacket packet5 = new DatagramPacket(sendData, sendData.length, remoteHostName, remotePort);
-                udpSocket.send(packet5);
-
-                //send counter with number of instances of keyword in user string
-                sendData = ByteBuffer.allocate(4).putInt(instanceCounter).array();
-                DatagramPacket packet6 = new DatagramPacket(sendData, sendData.length, remoteHostName, remotePort);
-                udpSocket.send(packet6);
+    private void answer(Session session, int messageId, ByteBuffer message, InetSocketAddress client) {
+        long start = System.nanoTime();
+        byte[] replyMessage;
+        long matched;
+        if (UdpProtocol.isBatch(message)) {
+            // the requests of a batch are hidden in parallel and answered together, in their order
+            List<AnonymizationRequest> requests = UdpProtocol.decodeBatchRequest(message);
+            bufferPool.release(message);
+            if (requests == null) {
+                log.warn("request.invalid", "client", client, "messageId", messageId);
+                return;
+            }
+            if (log.isEnabled(AsyncLogger.Level.DEBUG)) {
+                log.debug("request.batch", "client", client, "requests", requests.size());
+            }
+            long parsed = System.nanoTime();
+            metrics.parsed(parsed - start);
+
+            List<AnonymizationResult> results = BatchAnonymizer.anonymizeAll(requests);
+            matched = System.nanoTime();
+            metrics.requestsMatched(requests.size(), ServerMetrics.sum(results), matched - parsed);
+            replyMessage = UdpProtocol.encodeBatchReply(results);
+        } else if ((replyMessage = anonymizeBytes(message)) != null) {
+            // the keyword was hidden in the bytes of the request, there was nothing to parse
+            bufferPool.release(message);
+            if (log.isEnabled(AsyncLogger.Level.DEBUG)) {
+                log.debug("request", "client", client, "bytes", replyMessage.length - 8);
             }
+            matched = System.nanoTime();
+            metrics.parsed(0);
+            // the single instance counter follows the number of counters
+            metrics.requestsMatched(1, ByteBuffer.wrap(replyMessage).getInt(4), matched - start);
+        } else {
+            AnonymizationRequest request = UdpProtocol.decodeRequest(message);
+            bufferPool.release(message);
+            if (request == null) {
+                log.warn("request.invalid", "client", client, "messageId", messageId);
+                return;
+            }
+            if (log.isEnabled(AsyncLogger.Level.DEBUG)) {
+                log.debug("request", "client", client, "chars", request.getStrg().length());
+                if (log.logsPayloads()) {
+                    log.debug("request.payload", "client", client, "strg", request.getStrg());
+                }
+            }
+            long parsed = System.nanoTime();
+            metrics.parsed(parsed - start);
+
+            //hide the keyword and check number of instances of keyword in user string
+            AnonymizationResult result = AnonymizationEngine.forCurrentThread()
+                    .anonymize(request.getStrg(), request.getKeyWord());
+            matched = System.nanoTime();
+            metrics.requestsMatched(1, ServerMetrics.sum(result.getInstanceCounters()), matched - parsed);
+            replyMessage = UdpProtocol.encodeReply(result);
+        }
 
-            // if time out is reached
-            catch (SocketTimeoutException ste) {
-                System.err.println("Did not receive valid string from client. Terminating!");
-                System.exit(1);
-            } catch (IOException e) {
-                System.err.println("I/O error: " + e.getMessage());
+        try {
+            // send string with hidden keyword and the counters, one per keyword for a keyword set
+            int segmentSize = Math.min(session.receiver.getSegmentSize(), maxSegmentSize);
+            SelectiveRepeatSender reply = new SelectiveRepeatSender(
+                    datagram -> metrics.bytesSent(channel.send(datagram, client)),
+                    messageId, replyMessage, segmentSize, windowSize, new RetransmissionTimer());
+            session.reply = reply;
+            boolean idle = activeReplies.isEmpty();
+            activeReplies.add(session);
+            reply.sendWindow();
+            if (idle) {
+                // the receiving thread may be waiting with the longer timeout
+                selector.wakeup();
             }
+            metrics.sent(System.nanoTime() - matched);
+        } catch (IOException e) {
+            log.warn("reply.error", "client", client, "error", e);
         }
     }
 
     /**
-     * Anonymizes the input string containing the keyword, by replacing each character with 'X'.
+     * Hides the keyword of a single request in the bytes of its message, when the strings are UTF-8, the results
+     * are not cached and the strings are not logged, since those need the decoded string.
      *
-     * @param keyword The input string to be anonymized, containing the keyword.
-     * @return A string with the same length as the input, where each character is replaced with 'X'.
+     * @param message The request, from the position to the limit of the buffer, which is not consumed.
+     * @return The reply, or null if the request must be decoded.
      */
-    private String anonymizationData(String keyword) {
+    private byte[] anonymizeBytes(ByteBuffer message) {
+        if (!byteMatching) {
+            return null;
+        }
+        return UdpProtocol.anonymizeRequest(message, Utf8Anonymizer.forCurrentThread());
+    }
 
-        char[] keywordCharsArray = keyword.toCharArray();
-        char[] hiddenKeyword = new char[keywordCharsArray.length];
+    /**
+     * Forgets a reply that was acknowledged or given up, counting the segments it sent again, and keeps only a
+     * marker of its session. The markers of the oldest replies are forgotten when there are too many sessions.
+     *
+     * @param session The session of the reply.
+     * @param now     The current time, from System.nanoTime.
+     */
+    private void replyDone(Session session, long now) {
+        if (!activeReplies.remove(session)) {
+            return;
+        }
+        metrics.segmentsRetransmitted(session.reply.getRetransmissions());
+        session.done = true;
+        session.reply = null;
+        session.receiver = null;
+        session.lastActivity = now;
+        doneSessions.add(session);
+        while (sessions.size() > MAX_SESSIONS && !doneSessions.isEmpty()) {
+            forget(doneSessions.poll());
+        }
+    }
 
-        for (int i = 0; i < keywordCharsArray.length; i++) {
-            keywordCharsArray[i] = 'X';
-            hiddenKeyword[i] = keywordCharsArray[i];
+    private void forget(Session session) {
+        sessions.remove(session.key);
+        metrics.sessionClosed();
+    }
+
+    /**
+     * Sends again the lost segments of the replies, and forgets the replies that are done.
+     *
+     * @param now The current time, from System.nanoTime.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void retransmitReplies(long now) throws IOException {
+        for (Session session : activeReplies) {
+            session.reply.retransmitExpired(now);
+            if (session.reply.isDone()) {
+                replyDone(session, now);
+            }
         }
-        return new String(hiddenKeyword);
     }
 
     /**
-     * Replaces occurrences of a specified word (keyword) in a given sentence with a hidden representation.
-     * The replacement is case-insensitive.
+     * Discards the sessions that received no datagram for the session timeout, complete or not, unless their
+     * request is being processed or their reply is still being sent, and the markers of the replies done for
+     * longer than the timeout.
      *
-     * @param str     The original sentence in which the replacement will be performed.
-     * @param keyword The keyword to be replaced in the original sentence.
-     * @return A new string with occurrences of the keyword replaced by a hidden representation.
+     * @param now The current time, from System.nanoTime.
      */
-    private String replaceWord(String str, String keyword) {
+    private void expireSessions(long now) {
+        while (!doneSessions.isEmpty() && now - doneSessions.peek().lastActivity > sessionTimeout) {
+            forget(doneSessions.poll());
+        }
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (now - session.lastActivity > sessionTimeout && !session.done && !session.processing
+                    && session.reply == null) {
+                iterator.remove();
+                metrics.sessionClosed();
+                stopReceiving(session);
+                // the buffer of a request that never completed goes back to the pool
+                ByteBuffer message = session.receiver.takeMessage();
+                if (message != null) {
+                    bufferPool.release(message);
+                    metrics.reassemblyTimedOut();
+                }
+            }
+        }
+    }
 
-        String newStr = anonymizationData(keyword);
+    /**
+     * @return The metrics of the server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
 
-        // Use a case-insensitive regular expression for replacement
-        return str.replaceAll("(?i)" + Pattern.quote(keyword), newStr);
+    /**
+     * Stops receiving datagrams and waits for the requests being processed.
+     */
+    public void shutdown() {
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Server exception: " + e.getMessage());
+        }
+
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        metrics.unpublish();
+        System.out.println("Server stopped");
     }
 
     /**
@@ -242,7 +616,26 @@ public class server_java_udp {
 
         int port = Integer.parseInt(args[0]);
 
-        server_java_udp echoServer = new server_java_udp(port);
+        // the pool and the sessions can be tuned with -Dserver.udp.workers=<n>, -Dserver.udp.queue=<n>
+        // and -Dserver.udp.sessionTimeout=<milliseconds>, the replies with -Dserver.udp.window=<segments>
+        // and -Dserver.udp.maxDatagram=<bytes>; the requests being received are limited with
+        // -Dserver.udp.maxSessions=<n>, -Dserver.udp.maxSessionsPerClient=<n>
+        // and -Dserver.udp.maxReassemblyBytes=<bytes>
+        int workerThreads = Integer.getInteger("server.udp.workers", DEFAULT_WORKER_THREADS);
+        int queueCapacity = Integer.getInteger("server.udp.queue", DEFAULT_QUEUE_CAPACITY);
+        int sessionTimeout = Integer.getInteger("server.udp.sessionTimeout", DEFAULT_SESSION_TIMEOUT_MILLIS);
+        int windowSize = Integer.getInteger("server.udp.window", SelectiveRepeatSender.DEFAULT_WINDOW_SIZE);
+        int maxDatagramSize = Integer.getInteger("server.udp.maxDatagram", UdpProtocol.DEFAULT_MAX_DATAGRAM_SIZE);
+
+        // the metrics are published through JMX, and as text at http://localhost:<port>/metrics
+        // with -Dserver.metrics.port=<port>
+        int metricsPort = Integer.getInteger("server.metrics.port", 0);
+
+        server_java_udp echoServer = new server_java_udp(port, workerThreads, queueCapacity, sessionTimeout,
+                windowSize, maxDatagramSize);
+        echoServer.getMetrics().publish(metricsPort);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(echoServer::shutdown));
 
         echoServer.waitPackets();
     }
@@ -259,39 +652,77 @@ public class server_java_udp {
     }
 
     /**
-     * Sends an acknowledgment message ("ACK") to the specified remote host and port.
+     * Sends the acknowledgment of the segments of a message received so far to the specified remote host and port.
      *
-     * @param remoteHostName The InetAddress of the remote host to which the acknowledgment is sent.
-     * @param remotePort     The port number of the remote host to which the acknowledgment is sent.
+     * @param receiver The reassembly state of the message.
+     * @param client   The address and port of the client to which the acknowledgment is sent.
      * @throws IOException If an I/O error occurs while sending the acknowledgment.
      */
-    public void sendAck(InetAddress remoteHostName, int remotePort) throws IOException {
-        String ackMessage = "ACK";
-        sendData = ackMessage.getBytes();
-        DatagramPacket ackPacket = new DatagramPacket(sendData, sendData.length, remoteHostName, remotePort);
-        udpSocket.send(ackPacket);
+    public void sendAck(SelectiveRepeatReceiver receiver, InetSocketAddress client) throws IOException {
+        ackBuffer.clear();
+        receiver.writeAck(ackBuffer);
+        ackBuffer.flip();
+        metrics.bytesSent(channel.send(ackBuffer, client));
     }
 
 
     /**
-     *  @link https://www.w3schools.com/java/java_regex.asp
-     *  Checks the number of instances of keyword in user string
-     *  Matches the keyword (pattern) in usrString
-     *  Removes toLowerCase if it wants to match exactly the provided keyword
-     *  Counts the occurrences of the specified word
-     *
-     * @param strgKeywordReceived
-     * @param strgReceived
+     * Identifies the session of a request: the client address and port, and the id of the message.
+     * The receiving thread reuses a single key to look sessions up, so a segment costs no allocation.
      */
+    private static final class SessionKey {
+
+        private InetSocketAddress client;
+        private int messageId;
+
+        SessionKey(InetSocketAddress client, int messageId) {
+            set(client, messageId);
+        }
+
+        void set(InetSocketAddress client, int messageId) {
+            this.client = client;
+            this.messageId = messageId;
+        }
 
-    private static int getInstanceCounter(StringBuilder strgKeywordReceived, StringBuilder strgReceived) {
-        Pattern pattern = Pattern.compile("\\b" + Pattern.quote(String.valueOf(strgKeywordReceived)) + "\\b", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(String.valueOf(strgReceived).toLowerCase());
-        int instanceCounter = 0;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) o;
+            return messageId == other.messageId && client.equals(other.client);
+        }
 
-        while (matcher.find()) {
-            instanceCounter++;
+        @Override
+        public int hashCode() {
+            return 31 * client.hashCode() + messageId;
+        }
+    }
+
+    /**
+     * The reassembly state of a request, the sender of its reply and the time its last datagram arrived, or only
+     * the time its reply was done.
+     */
+    private static final class Session {
+
+        private final SessionKey key;
+        private SelectiveRepeatReceiver receiver;
+        private final InetSocketAddress client;
+        private volatile SelectiveRepeatSender reply;
+        private volatile boolean processing;
+        private boolean done;
+        private long lastActivity;
+        private boolean receiving;
+        private boolean ackScheduled;
+        private long ackDeadline;
+
+        Session(SessionKey key, SelectiveRepeatReceiver receiver, InetSocketAddress client) {
+            this.key = key;
+            this.receiver = receiver;
+            this.client = client;
         }
-        return instanceCounter;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package pt.ipp.isep.dei.examples.basic.domain;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link KeywordScanner} comparing a whole vector of bytes at a time, 32 bytes with AVX2 and 64 with AVX-512, with
+ * the first byte of the keyword in both cases. Only when a vector holds one is the vector of the bytes where the
+ * instances would end compared with the last byte; the few bytes left at the end of the string are compared one at
+ * a time. It is created by {@link KeywordScanner#shared()}, and needs the jdk.incubator.vector module.
+ */
+final class VectorKeywordScanner extends KeywordScanner {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    @Override
+    int next(byte[] strg, int from, int to, byte first, byte last, int keywordLength) {
+        int lastOffset = keywordLength - 1;
+        byte firstUpper = toUpperAscii(first);
+        byte lastUpper = toUpperAscii(last);
+
+        int i = from;
+        // the vector of the last bytes must fit in the string as well
+        for (; i + lastOffset + SPECIES.length() <= to; i += SPECIES.length()) {
+            ByteVector bytes = ByteVector.fromArray(SPECIES, strg, i);
+            VectorMask<Byte> found = bytes.lt((byte) 0);
+            VectorMask<Byte> firsts = bytes.eq(first).or(bytes.eq(firstUpper));
+            if (firsts.anyTrue()) {
+                ByteVector lasts = ByteVector.fromArray(SPECIES, strg, i + lastOffset);
+                found = found.or(firsts.and(lasts.eq(last).or(lasts.eq(lastUpper))));
+            }
+            if (found.anyTrue()) {
+                return i + found.firstTrue();
+            }
+        }
+        return super.next(strg, i, to, first, last, keywordLength);
+    }
+}